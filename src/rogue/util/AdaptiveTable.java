@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Map which keeps a handful of entries in a single flat array of alternating
+ * keys and values, found by a linear scan, and only switches to a HashMap once
+ * it grows past INLINE_LIMIT entries. A hashed table switches back to the
+ * array once removals bring it down to SHRINK_LIMIT entries, so that a map
+ * hovering around the limit does not keep converting back and forth. Clearing
+ * a table keeps whichever of the two it uses, so that a large tier which is
+ * emptied and refilled reuses its hash table.
+ *
+ * A tier holding a few entries then costs one small array instead of a hash
+ * table and a node per entry, and a lookup touches one or two cache lines.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+class AdaptiveTable<K, V> extends AbstractMap<K, V> {
+
+    // THE MOST ENTRIES KEPT INLINE, AND THE SIZE AT WHICH A HASHED TABLE SHRINKS
+    static final int INLINE_LIMIT = 8;
+    static final int SHRINK_LIMIT = 4;
+
+    // KEYS AT EVEN AND VALUES AT ODD INDICES, OR NULL WHILE EMPTY OR HASHED
+    private Object[] slots;
+    private int size;
+    private HashMap<K, V> hashed;
+    private int modCount;
+
+    /**
+     * Creates an empty table
+     */
+    AdaptiveTable() {
+    }
+
+    /**
+     * Creates a table holding the same entries as another one
+     *
+     * @param source the table to copy
+     */
+    AdaptiveTable(AdaptiveTable<K, V> source) {
+        if (source.hashed != null) {
+            hashed = new HashMap<>(source.hashed);
+        } else if (source.slots != null) {
+            slots = source.slots.clone();
+            size = source.size;
+        }
+    }
+
+    // MAP METHODS
+    @Override
+    public int size() {
+        return hashed != null ? hashed.size() : size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return hashed != null ? hashed.containsKey(key) : indexOf(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (hashed != null) {
+            return hashed.get(key);
+        }
+        int i = indexOf(key);
+        return i < 0 ? null : (V) slots[i + 1];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (hashed != null) {
+            return hashed.put(key, value);
+        }
+        int i = indexOf(key);
+        if (i >= 0) {
+            V old = (V) slots[i + 1];
+            slots[i + 1] = value;
+            return old;
+        }
+
+        if (size == INLINE_LIMIT) {
+            grow();
+            return hashed.put(key, value);
+        }
+        if (slots == null) {
+            slots = new Object[4];
+        } else if (size * 2 == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        slots[size * 2] = key;
+        slots[size * 2 + 1] = value;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (hashed != null) {
+            V old = hashed.remove(key);
+            if (hashed.size() <= SHRINK_LIMIT) {
+                shrink();
+            }
+            return old;
+        }
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) slots[i + 1];
+        delete(i);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        // KEEPS THE INLINE ARRAY OR THE HASH TABLE, SO THAT A TIER WHICH IS
+        // EMPTIED AND REFILLED OVER AND OVER DOES NOT REALLOCATE IT. ONLY A
+        // REMOVAL EVER SHRINKS A HASHED TABLE BACK
+        if (hashed != null) {
+            hashed.clear();
+            return;
+        }
+        if (slots != null) {
+            Arrays.fill(slots, null);
+        }
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return hashed != null ? hashed.entrySet().iterator() : new InlineIterator();
+            }
+
+            @Override
+            public int size() {
+                return AdaptiveTable.this.size();
+            }
+
+            @Override
+            public void clear() {
+                AdaptiveTable.this.clear();
+            }
+        };
+    }
+
+    // INTERNAL METHODS
+    // THE INDEX OF THE SLOT HOLDING A KEY, OR -1
+    private int indexOf(Object key) {
+        int end = size * 2;
+        for (int i = 0; i < end; i += 2) {
+            if (Objects.equals(slots[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // MOVES THE LAST ENTRY INTO THE SLOT OF THE REMOVED ONE
+    private void delete(int i) {
+        size--;
+        int last = size * 2;
+        slots[i] = slots[last];
+        slots[i + 1] = slots[last + 1];
+        slots[last] = null;
+        slots[last + 1] = null;
+        modCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        hashed = new HashMap<>(INLINE_LIMIT * 4);
+        for (int i = 0; i < size * 2; i += 2) {
+            hashed.put((K) slots[i], (V) slots[i + 1]);
+        }
+        slots = null;
+        size = 0;
+        modCount++;
+    }
+
+    private void shrink() {
+        slots = new Object[Math.max(4, hashed.size() * 2)];
+        size = 0;
+        for (Map.Entry<K, V> entry : hashed.entrySet()) {
+            slots[size * 2] = entry.getKey();
+            slots[size * 2 + 1] = entry.getValue();
+            size++;
+        }
+        hashed = null;
+        modCount++;
+    }
+
+    // INTERNAL CLASSES
+    // ITERATES OVER THE ARRAY, REVISITING A SLOT ONCE A REMOVE HAS MOVED THE
+    // LAST ENTRY INTO IT
+    private final class InlineIterator implements Iterator<Entry<K, V>> {
+
+        private int next;
+        private int last = -1;
+        private int expected = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size * 2;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size * 2) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 2;
+
+            final K key = (K) slots[last];
+            return new SimpleEntry<K, V>(key, (V) slots[last + 1]) {
+                @Override
+                public V setValue(V value) {
+                    V old = super.setValue(value);
+                    put(key, value);
+                    return old;
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            delete(last);
+            next = last;
+            last = -1;
+            expected = modCount;
+        }
+    }
+}
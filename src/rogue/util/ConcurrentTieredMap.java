@@ -0,0 +1,790 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe variant of a TieredMap which follows the same three rules as its
+ * single-threaded counterpart. Every tier stores its data in a concurrent map so
+ * that get, containsKey and the family lookups never take a lock and scale with
+ * the number of reading cores, even while puts propagate upwards and removes
+ * cascade downwards. Writes are guarded by a set of lock stripes shared by the
+ * entire family. Each key always maps to the same stripe, so a put or remove on
+ * one key runs through every tier it touches without interleaving with another
+ * write to that key, while writers to unrelated keys and unrelated branches run
+ * in parallel.
+ *
+ * While writers are running, every tier still remains a subset of its parent
+ * at any instant: a put reaches the root first and then works its way down to
+ * the tier it was called on, while a remove empties the deepest tiers first and
+ * works its way up. The only exception is a detach running at the same time as
+ * a write in the detached branch, which may leave that write in the old family.
+ *
+ * Unlike TieredMap, neither keys nor values may be null.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+public class ConcurrentTieredMap<K, V> implements Map<K, V> {
+
+    // NUMBER OF WRITE LOCK STRIPES PER FAMILY (POWER OF TWO)
+    private static final int STRIPES = 64;
+
+    // CONCURRENCY LEVEL USED WHEN NONE IS GIVEN
+    private static final int DEFAULT_CONCURRENCY = 16;
+
+    // SOURCE OF IDS WHICH REGISTER MAPS WITH THEIR PARENTS
+    private static final AtomicLong ids = new AtomicLong();
+
+    // KEY OF THIS MAP IN ITS PARENT'S CHILDREN
+    private final Long id = ids.incrementAndGet();
+
+    // REFERENCE TO PARENT
+    private volatile ConcurrentTieredMap<K, V> parent;
+
+    // DATA STORAGE
+    private final ConcurrentMap<K, V> data;
+
+    // ALL OF THE CHILDREN, BY ID
+    private final ConcurrentMap<Long, ConcurrentTieredMap<K, V>> children;
+
+    // WRITE LOCKS SHARED BY THE FAMILY
+    private final ReentrantLock[] locks;
+
+    // EXPECTED NUMBER OF CONCURRENT WRITERS PER TIER, SHARED BY THE FAMILY
+    private final int concurrencyLevel;
+
+    // CREATION METHODS
+    // - constructor (4)
+    // - child
+    // - sibling
+    // - getParent
+    // - getRoot
+    // - getNewRoot
+    // - getChildren
+    /**
+     * Basic constructor which creates a new root map - that is, a map without a
+     * parent. As a root map this map will contain more data than any of its
+     * children
+     */
+    public ConcurrentTieredMap() {
+        this(16, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Constructor which creates a new root map tuned for a given load. The
+     * concurrency level is handed down to every tier created from this family
+     * so that leaf tiers under heavy traffic are split as finely as the root.
+     *
+     * @param initialCapacity the number of entries the root is expected to hold
+     * @param concurrencyLevel the estimated number of threads writing to any
+     * one tier at the same time
+     * @throws IllegalArgumentException when the capacity is negative or the
+     * concurrency level is below 1
+     */
+    public ConcurrentTieredMap(int initialCapacity, int concurrencyLevel) {
+        this(null, ConcurrentTieredMap.<K, V>newRootData(initialCapacity, concurrencyLevel), newLocks(), concurrencyLevel);
+    }
+
+    /**
+     * Constructor to create a new root map based off of another map. The
+     * created map will be a root map but contain the same data as the source
+     * map.
+     *
+     * @param source the map to copy
+     */
+    public ConcurrentTieredMap(Map<K, V> source) {
+        this(null, new ConcurrentHashMap<K, V>(source), newLocks(), DEFAULT_CONCURRENCY);
+    }
+
+    // INTERNAL CONSTRUCTOR
+    private ConcurrentTieredMap(ConcurrentTieredMap<K, V> parent, ConcurrentMap<K, V> data, ReentrantLock[] locks, int concurrencyLevel) {
+        this.parent = parent;
+        this.data = data;
+        this.locks = locks;
+        this.concurrencyLevel = concurrencyLevel;
+        this.children = new ConcurrentHashMap<>(4, 0.75f, concurrencyLevel);
+    }
+
+    /**
+     * Method to create a child map - a new ConcurrentTieredMap with this as its
+     * parent.
+     *
+     * @return a new empty ConcurrentTieredMap of the same type as this map with
+     * this as its parent
+     */
+    public ConcurrentTieredMap<K, V> child() {
+        ConcurrentTieredMap<K, V> map = new ConcurrentTieredMap<>(this, newData(), locks, concurrencyLevel);
+        addChild(map);
+        return map;
+    }
+
+    /**
+     * Method to create a sibling map - a new ConcurrentTieredMap which shares
+     * the same parent map as this map. As such, the parent map will contain data
+     * of both this map and its sibling
+     *
+     * @return a new empty ConcurrentTieredMap of the same type as this map with
+     * the same parent as this one
+     * @throws UnsupportedOperationException when this has no parent
+     */
+    public ConcurrentTieredMap<K, V> sibling() {
+        ConcurrentTieredMap<K, V> p = parent;
+        if (p == null) {
+            throw new UnsupportedOperationException("May not create sibling of root map");
+        }
+
+        return p.child();
+    }
+
+    /**
+     * Method to retrieve the parent of this map
+     *
+     * @return the parent map of this instance, which may be null in the case of
+     * a root map
+     */
+    public ConcurrentTieredMap<K, V> getParent() {
+        return parent;
+    }
+
+    /**
+     * Method to retrieve the root map of the family this map belongs to. This
+     * is the highest order map in the family which contains the entirety of the
+     * data in the family
+     *
+     * @return a ConcurrentTieredMap of the same type as this one of generation 0
+     */
+    public ConcurrentTieredMap<K, V> getRoot() {
+        ConcurrentTieredMap<K, V> map = this;
+        ConcurrentTieredMap<K, V> p;
+        while ((p = map.parent) != null) {
+            map = p;
+        }
+        return map;
+    }
+
+    /**
+     * Method to create a new root map with no reference this map, initialized
+     * with a copy of the data contained in the map
+     *
+     * @return a new ConcurrentTieredMap of the same type as this one with a copy
+     * of the data contained in this one
+     */
+    public ConcurrentTieredMap<K, V> getNewRoot() {
+        ConcurrentMap<K, V> copy = newData();
+        copy.putAll(data);
+        return new ConcurrentTieredMap<>(null, copy, newLocks(), concurrencyLevel);
+    }
+
+    /**
+     * Allows access to all the children belonging to this particular instance.
+     * The returned collection is a read-only view which may be iterated while
+     * children are being added and detached, in which case it is unspecified
+     * whether those children are seen by the iteration. The children are in no
+     * particular order.
+     *
+     * @return a Collection of all the ConcurrentTieredMap children
+     */
+    public java.util.Collection<ConcurrentTieredMap<K, V>> getChildren() {
+        return Collections.unmodifiableCollection(children.values());
+    }
+
+    // DATA METHODS
+    // - isRoot
+    // - isLeaf
+    // - getNumChildren
+    // - getGeneration
+    /**
+     * Checks if this map is a root map
+     *
+     * @return true when this has no parent
+     */
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    /**
+     * Checks if this map is a leaf node in the entirety of the tree
+     *
+     * @return true if this map has no children
+     */
+    public boolean isLeaf() {
+        return children.isEmpty();
+    }
+
+    /**
+     * Method to check the number of children this map has
+     *
+     * @return the number of depending children
+     */
+    public int getNumChildren() {
+        return children.size();
+    }
+
+    /**
+     * Method to check a map's generation in the family tree. In other words,
+     * the distance between this map and the root
+     *
+     * @return the number of parents and grandparents this object has
+     */
+    public int getGeneration() {
+        int generation = 0;
+        for (ConcurrentTieredMap<K, V> p = parent; p != null; p = p.parent) {
+            generation++;
+        }
+        return generation;
+    }
+
+    // REDIRECTED OVERWRITTEN METHODS METHODS
+    // - clear
+    // - containsKey
+    // - containsValue
+    // - entrySet
+    // - get
+    // - hashCode
+    // - isEmpty
+    // - keySet
+    // - size
+    // - values
+    /**
+     * Removes every key of this map from this map and all maps below it, as
+     * remove would for each of them. Every write lock of the family is held
+     * meanwhile, so no other write interleaves with it and the children never
+     * keep keys this map no longer holds.
+     */
+    @Override
+    public void clear() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (K key : data.keySet()) {
+                removeCascade(key);
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return data.containsValue(value);
+    }
+
+    /**
+     * Returns a view of the entries of this map. Removing an entry through the
+     * view or its iterators removes its key from this map and every map below
+     * it, as remove does, and setting the value of an entry puts it as put
+     * does.
+     *
+     * @return a set view of the entries of this map
+     */
+    @Override
+    public java.util.Set<Entry<K, V>> entrySet() {
+        return new EntryView();
+    }
+
+    @Override
+    public V get(Object key) {
+        return data.get(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return data.hashCode();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    /**
+     * Returns a view of the keys of this map. Removing a key through the view
+     * or its iterators removes it from this map and every map below it, as
+     * remove does.
+     *
+     * @return a set view of the keys of this map
+     */
+    @Override
+    public java.util.Set<K> keySet() {
+        return new KeyView();
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Returns a view of the values of this map. Removing a value through the
+     * view or its iterators removes its key from this map and every map below
+     * it, as remove does.
+     *
+     * @return a view of the values of this map
+     */
+    @Override
+    public java.util.Collection<V> values() {
+        return new ValueView();
+    }
+
+    // CUSTOM OVERRIDEN METHODS
+    // - equals
+    // - put
+    // - putAll
+    // - remove
+    // - toString
+    @Override
+    public boolean equals(Object o) {
+        return data.equals(o);
+    }
+
+    /**
+     * Method to put a value in this map as well as all greater maps in the
+     * hierarchy. The value is written root-first, ending with this map, so any
+     * thread which finds the key in a tier will also find it in every ancestor
+     *
+     * @param key the object to use as a key for storage
+     * @param value the value to store
+     * @return the root value being replaced, or null if none
+     */
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            ConcurrentTieredMap<K, V>[] lineage = newArray(8);
+            int n = 0;
+            for (ConcurrentTieredMap<K, V> map = this; map != null; map = map.parent) {
+                if (n == lineage.length) {
+                    lineage = Arrays.copyOf(lineage, n * 2);
+                }
+                lineage[n++] = map;
+            }
+
+            V previous = lineage[n - 1].data.put(key, value);
+            for (int i = n - 2; i >= 0; i--) {
+                lineage[i].data.put(key, value);
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map as well as
+     * all higher maps in the hierarchy. Each mapping is propagated on its own,
+     * so other threads may observe part of the source map before the rest.
+     *
+     * @param map the source map to add from
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Method to remove a value from a given key from this map and all maps
+     * below it. Children are emptied before their parents, so the key never
+     * disappears from a tier while a descendant still holds it
+     *
+     * @param key the key to remove
+     * @return the value previously held at the given key
+     */
+    @Override
+    public V remove(Object key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return removeCascade(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // REMOVES A KEY AS remove DOES, BUT ONLY WHILE THIS MAP STILL HOLDS A GIVEN
+    // VALUE UNDER IT
+    private boolean removeEntry(Object key, Object value) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!value.equals(data.get(key))) {
+                return false;
+            }
+            removeCascade(key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // RECURSIVE INTERNAL METHOD, CALLED WITH THE KEY'S STRIPE HELD
+    private V removeCascade(Object key) {
+        for (ConcurrentTieredMap<K, V> child : children.values()) {
+            child.removeCascade(key);
+        }
+        return data.remove(key);
+    }
+
+    @Override
+    public String toString() {
+        return data.toString();
+    }
+
+    // CUSTOM METHODS
+    // - inherit
+    // - detach
+    // - containsKeyInFamily
+    // - containsValueInFamily
+    /**
+     * Inherits a value as a given key from a ConcurrentTieredMap higher up in
+     * the hierarchy. Note that this does nothing when used on a root map, and
+     * puts that value under the same key as its parents.
+     *
+     * @param key the key at which the value to inherit lays
+     * @return the inherited value
+     */
+    public V inherit(K key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return inheritLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // RECURSIVE INTERNAL METHOD, CALLED WITH THE KEY'S STRIPE HELD
+    private V inheritLocked(K key) {
+        ConcurrentTieredMap<K, V> p = parent;
+        if (p == null) {
+            return data.get(key);
+        } else {
+            V value = p.inheritLocked(key);
+            if (value != null) {
+                data.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Method which detaches this node from the family to become the head of its
+     * own family. The detached maps keep sharing their write locks with the old
+     * family, which costs some contention but never correctness
+     *
+     * @return the former parent of this instance
+     * @throws UnsupportedOperationException when this has no parent
+     */
+    public ConcurrentTieredMap<K, V> detach() {
+        synchronized (this) {
+            ConcurrentTieredMap<K, V> oldParent = parent;
+            if (oldParent == null) {
+                throw new UnsupportedOperationException("May not detach root map");
+            }
+            oldParent.removeChild(this);
+            parent = null;
+            return oldParent;
+        }
+    }
+
+    /**
+     * Checks if a value exists for a given key anywhere in the entirety of the
+     * upper hierarchy. This does not however guarantee that a value exists
+     * under the key in this particular instance.
+     *
+     * @param key the key value to check
+     * @return true if a valid value exists under the provided key somewhere in
+     * the structure
+     */
+    public boolean containsKeyInFamily(K key) {
+        return getRoot().containsKey(key);
+    }
+
+    /**
+     * Checks if a given value is stored anywhere within the entirety of the
+     * upper hierarchy. This does not however guarantee that the value exists in
+     * this particular instance.
+     *
+     * @param value the value to check if it exists
+     * @return true if the value is stored in the entirety of the data structure
+     */
+    public boolean containsValueInFamily(V value) {
+        return getRoot().containsValue(value);
+    }
+
+    // STATIC METHODS
+    // - toGraph
+    // - toPartialGraph
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * the entire family graph this belongs to
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure
+     */
+    public static String toGraph(ConcurrentTieredMap<?, ?> map) {
+        return toPartialGraph(map.getRoot());
+    }
+
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * this map and all of its children
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure with this as its
+     * head
+     */
+    public static String toPartialGraph(ConcurrentTieredMap<?, ?> map) {
+        StringBuilder s = new StringBuilder();
+        toGraph(map, 0, s);
+        return s.toString();
+    }
+
+    // RECURSIVE INTERNAL METHOD
+    private static void toGraph(ConcurrentTieredMap<?, ?> map, int depth, StringBuilder s) {
+        s.append(map.data);
+
+        for (ConcurrentTieredMap<?, ?> child : map.children.values()) {
+            s.append('\n');
+            for (int i = 0; i < depth; i++) {
+                s.append(' ');
+            }
+            toGraph(child, depth + 1, s);
+        }
+    }
+
+    // INTERNAL HELPERS
+    private ConcurrentMap<K, V> newData() {
+        return new ConcurrentHashMap<>(16, 0.75f, concurrencyLevel);
+    }
+
+    private static <K, V> ConcurrentMap<K, V> newRootData(int initialCapacity, int concurrencyLevel) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity may not be negative: " + initialCapacity);
+        }
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Concurrency level must be at least 1: " + concurrencyLevel);
+        }
+        return new ConcurrentHashMap<>(initialCapacity, 0.75f, concurrencyLevel);
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (STRIPES - 1)];
+    }
+
+    private void addChild(ConcurrentTieredMap<K, V> child) {
+        children.put(child.id, child);
+    }
+
+    private void removeChild(ConcurrentTieredMap<K, V> child) {
+        children.remove(child.id, child);
+    }
+
+    private static ReentrantLock[] newLocks() {
+        ReentrantLock[] locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> ConcurrentTieredMap<K, V>[] newArray(int length) {
+        return (ConcurrentTieredMap<K, V>[]) new ConcurrentTieredMap<?, ?>[length];
+    }
+
+    // VIEWS
+    // - ViewIterator
+    // - EntryView
+    // - KeyView
+    // - ValueView
+    // ITERATES OVER THE ENTRIES OF THIS MAP, REMOVING THROUGH THE MAP RATHER
+    // THAN THROUGH THE STORAGE SO THAT EVERY REMOVAL CASCADES UNDER ITS LOCK
+    private abstract class ViewIterator<E> implements Iterator<E> {
+
+        private final Iterator<Entry<K, V>> it = data.entrySet().iterator();
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            last = it.next();
+            return element(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentTieredMap.this.remove(last.getKey());
+            last = null;
+        }
+
+        abstract E element(Entry<K, V> entry);
+    }
+
+    private final class EntryView extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new ViewIterator<Entry<K, V>>() {
+                @Override
+                Entry<K, V> element(Entry<K, V> entry) {
+                    return new AbstractMap.SimpleEntry<K, V>(entry) {
+                        @Override
+                        public V setValue(V value) {
+                            put(getKey(), value);
+                            return super.setValue(value);
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            V value = entry.getKey() == null ? null : data.get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return entry.getKey() != null && entry.getValue() != null
+                    && removeEntry(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentTieredMap.this.clear();
+        }
+    }
+
+    private final class KeyView extends AbstractSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<K>() {
+                @Override
+                K element(Entry<K, V> entry) {
+                    return entry.getKey();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return data.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return ConcurrentTieredMap.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentTieredMap.this.clear();
+        }
+    }
+
+    private final class ValueView extends AbstractCollection<V> {
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<V>() {
+                @Override
+                V element(Entry<K, V> entry) {
+                    return entry.getValue();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return data.containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentTieredMap.this.clear();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Open addressing map whose entries are immutable and may be linked into any
+ * number of tables at once. A TieredMap family using these tables creates an
+ * entry once, in the map a value is put in first, and every other map the
+ * value propagates to links the very same entry, so that each tier only pays
+ * for a single reference per key instead of a full hash map node.
+ *
+ * Replacing a value creates a new entry in the tables it is written to, while
+ * every other table keeps the old one, which is exactly how separate hash maps
+ * would behave.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+class EntryTable<K, V> extends AbstractMap<K, V> {
+
+    private static final int MIN_CAPACITY = 4;
+
+    // SLOTS, A POWER OF TWO IN LENGTH AND AT MOST THREE QUARTERS FULL
+    private Node<K, V>[] table;
+    private int size;
+    private int modCount;
+
+    /**
+     * Creates an empty table
+     */
+    EntryTable() {
+        table = newTable(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a table linking the same entries as another one
+     *
+     * @param source the table to copy
+     */
+    EntryTable(EntryTable<K, V> source) {
+        table = source.table.clone();
+        size = source.size;
+    }
+
+    // SHARING METHODS
+    // - link
+    /**
+     * Links the entry another table holds under a key into this table,
+     * replacing whatever this table held under that key, provided that the
+     * entry holds the expected value
+     *
+     * @param source the table to take the entry from
+     * @param key the key of the entry
+     * @param value the value the entry is expected to hold
+     * @return false if the source table has no such entry
+     */
+    boolean link(EntryTable<K, V> source, Object key, V value) {
+        Node<K, V> node = source.node(key);
+        if (node == null || node.value != value) {
+            return false;
+        }
+        insert(node);
+        return true;
+    }
+
+    // MAP METHODS
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return node(key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = node(key);
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int slot = slot(key, hash(key));
+        Node<K, V> node = table[slot];
+        if (node != null) {
+            if (node.value != value) {
+                table[slot] = new Node<>(key, value, node.hash);
+                modCount++;
+            }
+            return node.value;
+        }
+
+        insert(new Node<>(key, value, hash(key)));
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int slot = slot(key, hash(key));
+        Node<K, V> node = table[slot];
+        if (node == null) {
+            return null;
+        }
+        delete(slot);
+        return node.value;
+    }
+
+    @Override
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(table, null);
+            size = 0;
+            modCount++;
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new TableIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void clear() {
+                EntryTable.this.clear();
+            }
+        };
+    }
+
+    // INTERNAL METHODS
+    private Node<K, V> node(Object key) {
+        return table[slot(key, hash(key))];
+    }
+
+    // THE SLOT HOLDING A KEY, OR THE EMPTY SLOT IT WOULD GO IN
+    private int slot(Object key, int hash) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        Node<K, V> node;
+        while ((node = table[i]) != null) {
+            if (node.hash == hash && Objects.equals(node.key, key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void insert(Node<K, V> node) {
+        int slot = slot(node.key, node.hash);
+        if (table[slot] == null) {
+            if ((size + 1) * 4 > table.length * 3) {
+                resize(table.length * 2);
+                slot = slot(node.key, node.hash);
+            }
+            size++;
+        }
+        table[slot] = node;
+        modCount++;
+    }
+
+    // EMPTIES A SLOT AND SHIFTS BACK ANY FOLLOWING ENTRY THAT PROBED PAST IT
+    private void delete(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            Node<K, V> node = table[i];
+            if (node == null) {
+                break;
+            }
+            int home = node.hash & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = node;
+                hole = i;
+            }
+        }
+        table[hole] = null;
+        size--;
+        modCount++;
+    }
+
+    private void resize(int capacity) {
+        Node<K, V>[] old = table;
+        table = newTable(capacity);
+        for (Node<K, V> node : old) {
+            if (node != null) {
+                table[slot(node.key, node.hash)] = node;
+            }
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newTable(int capacity) {
+        return (Node<K, V>[]) new Node<?, ?>[capacity];
+    }
+
+    // INTERNAL CLASSES
+    // AN ENTRY WHICH MAY BE LINKED INTO SEVERAL TABLES
+    private static final class Node<K, V> {
+
+        private final K key;
+        private final V value;
+        private final int hash;
+
+        Node(K key, V value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    // ITERATES OVER THE SLOTS, SWITCHING TO A COPY OF THEM ON THE FIRST REMOVE
+    // SO THAT ENTRIES SHIFTED BACK BY A REMOVE ARE NEITHER SKIPPED NOR REPEATED
+    private final class TableIterator implements Iterator<Entry<K, V>> {
+
+        private Node<K, V>[] nodes = table;
+        private boolean copied;
+        private int next = -1;
+        private int last = -1;
+        private int expected = modCount;
+
+        TableIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < nodes.length && nodes[next] == null);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < nodes.length;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= nodes.length) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+
+            final Node<K, V> node = nodes[last];
+            return new SimpleEntry<K, V>(node.key, node.value) {
+                @Override
+                public V setValue(V value) {
+                    V old = super.setValue(value);
+                    put(node.key, value);
+                    expected = modCount;
+                    return old;
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!copied) {
+                nodes = nodes.clone();
+                copied = true;
+            }
+            EntryTable.this.remove(nodes[last].key);
+            last = -1;
+            expected = modCount;
+        }
+    }
+}
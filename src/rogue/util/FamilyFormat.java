@@ -0,0 +1,446 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+/**
+ * Compact binary format for a whole TieredMap family, or any map along with
+ * everything below it, which relies on every child being a subset of its
+ * parent to write every value only once.
+ *
+ * The maps are written one after another, parents before their children. The
+ * first map of a stream writes all of its entries. Every other map writes
+ * which of its parent's entries it holds, as a bitset over the order in which
+ * its parent's entries were written or as a list of their positions in it,
+ * whichever is shorter, followed by an extras section of any entry it holds
+ * that its parent does not hold with an equal value. The extras are empty in
+ * a family that follows every rule. Every map then writes its number of
+ * children. Keys and values are written by a Serializer in little-endian
+ * order, each preceded by its length.
+ *
+ * Reading a stream creates every map directly from the entries it holds, in
+ * a single pass and without a put on any TieredMap, and every map of the new
+ * family holds the very same value instances as its parent.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+public class FamilyFormat<K, V> {
+
+    // "TMFF" AND THE REVISION OF THE FORMAT
+    private static final int MAGIC = 0x544D4646;
+    private static final int REVISION = 1;
+
+    // HOW A MAP WRITES WHICH OF ITS PARENT'S ENTRIES IT HOLDS
+    private static final int BITSET = 0;
+    private static final int POSITIONS = 1;
+
+    private final Serializer<K> keys;
+    private final Serializer<V> values;
+
+    // REUSED FOR EVERY KEY AND VALUE, GROWN AS NEEDED
+    private ByteBuffer scratch = newBuffer(256);
+
+    /**
+     * Creates a format writing keys and values with the given serializers.
+     * Since the serializers may keep state, a format may only be used by one
+     * thread at a time.
+     *
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     */
+    public FamilyFormat(Serializer<K> keys, Serializer<V> values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    // STREAM METHODS
+    // - write
+    // - read (3)
+    /**
+     * Writes a map and every map below it to a stream, applying any queued
+     * write of a write-behind family first. The stream is flushed but not
+     * closed.
+     *
+     * @param map the highest map to write
+     * @param stream the stream to write to
+     * @throws IOException when the stream cannot be written
+     */
+    public void write(TieredMap<K, V> map, OutputStream stream) throws IOException {
+        map.flush();
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(REVISION);
+
+        Deque<Frame<K, V>> frames = new ArrayDeque<>();
+        frames.push(writeMap(out, map, null));
+        while (!frames.isEmpty()) {
+            Frame<K, V> frame = frames.peek();
+            if (frame.children.hasNext()) {
+                frames.push(writeMap(out, frame.children.next(), frame));
+            } else {
+                frames.pop();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a family written by write, keeping every generation in the maps
+     * of the default storage
+     *
+     * @param stream the stream to read from
+     * @return the new root of the family, holding what the highest map written
+     * held
+     * @throws IOException when the stream cannot be read or does not hold a
+     * family
+     */
+    public TieredMap<K, V> read(InputStream stream) throws IOException {
+        return read(stream, TierStorage.<K, V>getDefault());
+    }
+
+    /**
+     * Reads a family written by write, keeping every generation in the maps
+     * of a given storage. Only as much of the stream is read as the family
+     * takes.
+     *
+     * @param stream the stream to read from
+     * @param storage the storage of the new family
+     * @return the new root of the family, holding what the highest map written
+     * held
+     * @throws IOException when the stream cannot be read or does not hold a
+     * family
+     */
+    public TieredMap<K, V> read(InputStream stream, TierStorage<K, V> storage) throws IOException {
+        return read(stream, null, storage);
+    }
+
+    /**
+     * Reads a family written by write as a new child of a map, keeping every
+     * generation in the maps of a given storage. The highest map read must
+     * hold no key the parent lacks.
+     *
+     * @param stream the stream to read from
+     * @param parent the map to create the highest map read below, or null to
+     * read a new family
+     * @param storage the storage of the family of the parent
+     * @return the highest map read
+     * @throws IOException when the stream cannot be read or does not hold a
+     * family
+     */
+    TieredMap<K, V> read(InputStream stream, TieredMap<K, V> parent, TierStorage<K, V> storage) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a TieredMap family");
+        }
+        int revision = in.readUnsignedByte();
+        if (revision != REVISION) {
+            throw new IOException("Unsupported family format revision " + revision);
+        }
+
+        Frame<K, V> top = readMap(in, null, parent, storage);
+        Deque<Frame<K, V>> frames = new ArrayDeque<>();
+        frames.push(top);
+        while (!frames.isEmpty()) {
+            Frame<K, V> frame = frames.peek();
+            if (frame.remaining > 0) {
+                frame.remaining--;
+                frames.push(readMap(in, frame, null, storage));
+            } else {
+                frames.pop();
+            }
+        }
+        return top.map;
+    }
+
+    // INTERNAL METHODS
+    // WRITES THE ENTRIES AND NUMBER OF CHILDREN OF A MAP, RETURNING THEM IN
+    // THE ORDER THE CHILDREN REFER TO THEM BY
+    private Frame<K, V> writeMap(DataOutputStream out, TieredMap<K, V> map, Frame<K, V> parent) throws IOException {
+        List<K> order = new ArrayList<>(map.size());
+        List<V> held = new ArrayList<>(map.size());
+        List<Entry<K, V>> extras = new ArrayList<>();
+        if (parent == null) {
+            extras.addAll(map.entrySet());
+        } else {
+            Map<Object, Integer> positions = parent.positions();
+            int[] members = new int[map.size()];
+            int count = 0;
+            for (Entry<K, V> entry : map.entrySet()) {
+                Integer position = positions.get(entry.getKey());
+                if (position != null && Objects.equals(entry.getValue(), parent.values.get(position))) {
+                    members[count++] = position;
+                } else {
+                    extras.add(entry);
+                }
+            }
+            Arrays.sort(members, 0, count);
+            writeMembers(out, members, count, parent.keys.size());
+            for (int i = 0; i < count; i++) {
+                order.add(parent.keys.get(members[i]));
+                held.add(parent.values.get(members[i]));
+            }
+        }
+
+        writeLength(out, extras.size());
+        for (Entry<K, V> entry : extras) {
+            writeObject(out, keys, entry.getKey());
+            writeObject(out, values, entry.getValue());
+            order.add(entry.getKey());
+            held.add(entry.getValue());
+        }
+        writeLength(out, map.getNumChildren());
+
+        Iterator<TieredMap<K, V>> children = map.getChildList().iterator();
+        return new Frame<>(map, order, held, children, 0);
+    }
+
+    // READS A MAP, CREATING IT BELOW THE MAP OF ITS PARENT'S FRAME, OR FOR THE
+    // HIGHEST MAP BELOW A GIVEN MAP OR AS A NEW ROOT
+    private Frame<K, V> readMap(DataInputStream in, Frame<K, V> parent, TieredMap<K, V> under, TierStorage<K, V> storage) throws IOException {
+        List<K> order = new ArrayList<>();
+        List<V> held = new ArrayList<>();
+        if (parent != null) {
+            for (int position : readMembers(in, parent.keys.size())) {
+                order.add(parent.keys.get(position));
+                held.add(parent.values.get(position));
+            }
+        }
+        int linked = order.size();
+        int extras = readLength(in);
+        TieredMap<K, V> above = parent != null ? parent.map : under;
+        List<K> lacking = new ArrayList<>(0);
+        for (int i = 0; i < extras; i++) {
+            K key = readObject(in, keys);
+            order.add(key);
+            held.add(readObject(in, values));
+            if (above != null && !above.containsKey(key)) {
+                lacking.add(key);
+            }
+        }
+
+        Map<K, V> data = null;
+        if (!order.isEmpty()) {
+            data = storage.create(above == null ? 0 : above.getGeneration() + 1);
+            Map<K, V> source = parent == null ? null : parent.data;
+            for (int i = 0; i < order.size(); i++) {
+                // A SHARED FAMILY LINKS THE ENTRIES OF THE PARENT INSTEAD OF
+                // CREATING NEW ONES
+                if (i < linked && data instanceof EntryTable && source instanceof EntryTable
+                        && ((EntryTable<K, V>) data).link((EntryTable<K, V>) source, order.get(i), held.get(i))) {
+                    continue;
+                }
+                data.put(order.get(i), held.get(i));
+            }
+        }
+
+        TieredMap<K, V> map;
+        if (parent != null) {
+            map = parent.map.adopt(data, lacking);
+        } else {
+            map = under == null ? TieredMap.adopt(data, storage) : under.adopt(data, lacking);
+        }
+        Frame<K, V> frame = new Frame<>(map, order, held, null, readLength(in));
+        frame.data = data;
+        return frame;
+    }
+
+    // WRITES THE SORTED POSITIONS OF A MAP'S ENTRIES AMONG ITS PARENT'S
+    private static void writeMembers(DataOutputStream out, int[] members, int count, int total) throws IOException {
+        int listed = lengthOf(count);
+        for (int i = 0, last = -1; i < count; last = members[i], i++) {
+            listed += lengthOf(members[i] - last - 1);
+        }
+
+        if (listed < (total + 7) / 8) {
+            out.writeByte(POSITIONS);
+            writeLength(out, count);
+            for (int i = 0, last = -1; i < count; last = members[i], i++) {
+                writeLength(out, members[i] - last - 1);
+            }
+        } else {
+            out.writeByte(BITSET);
+            byte[] bits = new byte[(total + 7) / 8];
+            for (int i = 0; i < count; i++) {
+                bits[members[i] >>> 3] |= 1 << (members[i] & 7);
+            }
+            out.write(bits);
+        }
+    }
+
+    private static int[] readMembers(DataInputStream in, int total) throws IOException {
+        int encoding = in.readUnsignedByte();
+        if (encoding == POSITIONS) {
+            int[] members = new int[readLength(in)];
+            for (int i = 0, last = -1; i < members.length; i++) {
+                last += readLength(in) + 1;
+                if (last >= total) {
+                    throw new IOException("Entry position " + last + " beyond the " + total + " of the parent");
+                }
+                members[i] = last;
+            }
+            return members;
+        }
+        if (encoding != BITSET) {
+            throw new IOException("Unknown member encoding " + encoding);
+        }
+
+        byte[] bits = new byte[(total + 7) / 8];
+        in.readFully(bits);
+        if ((total & 7) != 0 && (bits[bits.length - 1] & 0xFF) >>> (total & 7) != 0) {
+            throw new IOException("Entry position beyond the " + total + " of the parent");
+        }
+        int count = 0;
+        for (byte b : bits) {
+            count += Integer.bitCount(b & 0xFF);
+        }
+        int[] members = new int[count];
+        for (int i = 0, j = 0; i < total; i++) {
+            if ((bits[i >>> 3] & 1 << (i & 7)) != 0) {
+                members[j++] = i;
+            }
+        }
+        return members;
+    }
+
+    // WRITES AN OBJECT AS ITS LENGTH PLUS ONE, OR 0 FOR NULL, AND ITS BYTES.
+    // THE RECORDS OF A FamilyLog ARE WRITTEN THE SAME WAY
+    <T> void writeObject(DataOutputStream out, Serializer<T> serializer, T value) throws IOException {
+        if (value == null) {
+            writeLength(out, 0);
+            return;
+        }
+        int size = serializer.sizeOf(value);
+        if (size > scratch.capacity()) {
+            scratch = newBuffer(Math.max(size, scratch.capacity() * 2));
+        }
+        serializer.write(value, scratch, 0);
+        writeLength(out, size + 1);
+        out.write(scratch.array(), 0, size);
+    }
+
+    <T> T readObject(DataInputStream in, Serializer<T> serializer) throws IOException {
+        int length = readLength(in);
+        if (length == 0) {
+            return null;
+        }
+        int size = length - 1;
+        if (size > scratch.capacity()) {
+            scratch = newBuffer(Math.max(size, scratch.capacity() * 2));
+        }
+        in.readFully(scratch.array(), 0, size);
+        return serializer.read(scratch, 0, size);
+    }
+
+    // UNSIGNED LEB128: SEVEN BITS PER BYTE, LOWEST FIRST, HIGH BIT SET ON
+    // EVERY BYTE BUT THE LAST
+    static void writeLength(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readLength(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed length");
+    }
+
+    private static int lengthOf(int value) {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // INTERNAL CLASSES
+    // A MAP ON THE WAY DOWN, WITH ITS ENTRIES IN THE ORDER THEY WERE WRITTEN
+    // AND THE CHILDREN LEFT TO WRITE OR READ
+    private static final class Frame<K, V> {
+
+        final TieredMap<K, V> map;
+        final List<K> keys;
+        final List<V> values;
+        final Iterator<TieredMap<K, V>> children;
+        int remaining;
+        Map<K, V> data;
+        private Map<Object, Integer> positions;
+
+        Frame(TieredMap<K, V> map, List<K> keys, List<V> values, Iterator<TieredMap<K, V>> children, int remaining) {
+            this.map = map;
+            this.keys = keys;
+            this.values = values;
+            this.children = children;
+            this.remaining = remaining;
+        }
+
+        // THE POSITION OF EVERY KEY, BUILT ONCE FOR ALL OF THE CHILDREN
+        Map<Object, Integer> positions() {
+            if (positions == null) {
+                positions = new HashMap<>(keys.size() * 4 / 3 + 1);
+                for (int i = 0; i < keys.size(); i++) {
+                    positions.put(keys.get(i), i);
+                }
+            }
+            return positions;
+        }
+    }
+}
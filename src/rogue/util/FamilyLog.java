@@ -0,0 +1,758 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change made to a TieredMap family, kept in a
+ * directory along with a checkpoint of the family, from which the family is
+ * restored exactly as it was after a crash. Every put, putAll, remove,
+ * removeAll, inherit, clear and clearSubtree, every removal or replacement
+ * through the views of a map, and the creation of every child, sibling or
+ * clone and every detach is recorded against the map it was made on. Maps are known to
+ * the log by their position in the family, numbered parents before children
+ * as the family format writes them, and every map created afterwards takes
+ * the next number.
+ *
+ * Records are collected in memory and written as one group, which is forced
+ * to the disk if syncing is on, once the group reaches its size and on every
+ * commit, checkpoint and close. A change is thus only certain to survive a
+ * crash once the group holding it was committed. Every group is written with
+ * a checksum, and a group torn by a crash is dropped when the log is opened.
+ *
+ * A checkpoint writes the whole family in the format of FamilyFormat and
+ * starts the log over, so that opening the directory reads the checkpoint
+ * and only replays the changes made since. Checkpoints are taken when asked
+ * for, and automatically whenever the log outgrows the checkpoint size if
+ * one is set.
+ *
+ * Records are replayed through the same methods they were made with, and
+ * switching write-behind mode, flushing and every queued write applied early
+ * are recorded as well, so that a write-behind family is restored with the
+ * same queued writes. Switching key-indexed and summarized mode is recorded
+ * too, and a checkpoint keeps all three modes. Clones are recorded as well,
+ * and held by the log until the next checkpoint, which they are not part of,
+ * so a clone made before the last checkpoint has its puts
+ * recorded against its nearest ancestor among the children of their parents
+ * instead, which has the same effect on the family outside of write-behind
+ * mode, and its other changes are not recorded. Every key removed from a
+ * logged family must be of the type of its keys. A log may only be used by
+ * one thread at a time.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+public class FamilyLog<K, V> implements Closeable {
+
+    // "TMFC" AND "TMFL", EACH FOLLOWED BY THE NUMBER OF THE CHECKPOINT. THE
+    // NUMBER OF A CHECKPOINT IS FOLLOWED BY THE MODES OF THE FAMILY
+    private static final int CHECKPOINT_MAGIC = 0x544D4643;
+    private static final int LOG_MAGIC = 0x544D464C;
+    private static final int HEADER = 12;
+    private static final String CHECKPOINT = "family.checkpoint";
+    private static final String LOG = "family.log";
+
+    // A GROUP STARTS WITH ITS LENGTH AND CHECKSUM
+    private static final int GROUP_HEADER = 8;
+    private static final int DEFAULT_GROUP_SIZE = 64 * 1024;
+
+    // THE CHANGE A RECORD STANDS FOR, FOLLOWED BY THE NUMBER OF THE MAP IT WAS
+    // MADE ON
+    private static final int PUT = 0;
+    private static final int PUT_ALL = 1;
+    private static final int REMOVE = 2;
+    private static final int REMOVE_ALL = 3;
+    private static final int REMOVE_LOCAL = 4;
+    private static final int REPLACE = 5;
+    private static final int INHERIT = 6;
+    private static final int CHILD = 7;
+    private static final int DETACH = 8;
+    private static final int CLEAR = 9;
+    private static final int CLEAR_SUBTREE = 10;
+    private static final int FLUSH = 11;
+    private static final int SETTLE = 12;
+    private static final int WRITE_BEHIND = 13;
+    private static final int IMMEDIATE = 14;
+    private static final int CLONE = 15;
+    private static final int KEY_INDEXED = 16;
+    private static final int UNINDEXED = 17;
+    private static final int SUMMARIZED = 18;
+    private static final int UNSUMMARIZED = 19;
+
+    // THE MODES OF A CHECKPOINTED FAMILY
+    private static final int WRITE_BEHIND_MODE = 1;
+    private static final int KEY_INDEXED_MODE = 2;
+    private static final int SUMMARIZED_MODE = 4;
+
+    private final File directory;
+    private final Serializer<K> keys;
+    private final Serializer<V> values;
+    private final FamilyFormat<K, V> format;
+    private final TieredMap<K, V> root;
+    private final FileChannel channel;
+
+    // EVERY MAP OF THE FAMILY BY ITS NUMBER, WITH DETACHED ONES LEFT NULL
+    private final Map<TieredMap<K, V>, Integer> ids = new IdentityHashMap<>();
+    private final List<TieredMap<K, V>> maps = new ArrayList<>();
+
+    // THE RECORDS WAITING TO BE COMMITTED, AFTER ROOM FOR THE GROUP HEADER
+    private final Group group = new Group();
+    private final DataOutputStream out = new DataOutputStream(group);
+
+    private long checkpoint;
+    private int groupSize = DEFAULT_GROUP_SIZE;
+    private boolean syncing = true;
+    private long checkpointSize;
+    private boolean closed;
+
+    private FamilyLog(File directory, Serializer<K> keys, Serializer<V> values, TierStorage<K, V> storage) throws IOException {
+        this.directory = directory;
+        this.keys = keys;
+        this.values = values;
+        this.format = new FamilyFormat<>(keys, values);
+
+        File saved = new File(directory, CHECKPOINT);
+        if (saved.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(saved)))) {
+                if (in.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException(saved + " is not a family checkpoint");
+                }
+                checkpoint = in.readLong();
+                int modes = in.readUnsignedByte();
+                root = format.read(in, storage);
+                root.setWriteBehind((modes & WRITE_BEHIND_MODE) != 0);
+                root.setKeyIndexed((modes & KEY_INDEXED_MODE) != 0);
+                root.setSubtreeSummaries((modes & SUMMARIZED_MODE) != 0);
+            }
+        } else {
+            root = new TieredMap<>(storage);
+        }
+        number();
+
+        File file = new File(directory, LOG);
+        long end = file.isFile() ? replay(file) : 0;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (end == 0) {
+            // NO LOG, OR ONE OLDER THAN THE CHECKPOINT WHICH ALREADY HOLDS IT
+            restart();
+        } else {
+            channel.truncate(end);
+            channel.position(end);
+        }
+        root.setLog(this);
+    }
+
+    // CREATION METHODS
+    // - open (2)
+    /**
+     * Opens the family logged in a directory, restoring it from its last
+     * checkpoint and every change committed since, or creates an empty one if
+     * the directory holds none. Every generation is kept in hash maps.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param directory the directory of the family, created if missing
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @return the open log, recording the restored family
+     * @throws IOException when the checkpoint or the log cannot be read
+     */
+    public static <K, V> FamilyLog<K, V> open(File directory, Serializer<K> keys, Serializer<V> values) throws IOException {
+        return open(directory, keys, values, TierStorage.<K, V>getDefault());
+    }
+
+    /**
+     * Opens the family logged in a directory, restoring it from its last
+     * checkpoint and every change committed since, or creates an empty one if
+     * the directory holds none. Every generation is kept in the maps of a
+     * given storage.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param directory the directory of the family, created if missing
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @param storage the storage of every generation
+     * @return the open log, recording the restored family
+     * @throws IOException when the checkpoint or the log cannot be read
+     */
+    public static <K, V> FamilyLog<K, V> open(File directory, Serializer<K> keys, Serializer<V> values, TierStorage<K, V> storage) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new FamilyLog<>(directory, keys, values, storage);
+    }
+
+    // LOG METHODS
+    // - getRoot
+    // - setGroupSize
+    // - getGroupSize
+    // - setSyncing
+    // - isSyncing
+    // - setCheckpointSize
+    // - getCheckpointSize
+    // - commit
+    // - checkpoint
+    // - close
+    /**
+     * Retrieves the root of the logged family
+     *
+     * @return the root map, every change to whose family is recorded
+     */
+    public TieredMap<K, V> getRoot() {
+        return root;
+    }
+
+    /**
+     * Sets how many bytes of records are collected before they are committed
+     * as one group. Larger groups take fewer writes and forces, but leave more
+     * changes to be lost in a crash until the next commit. A size of 0
+     * commits every change on its own.
+     *
+     * @param bytes the size at which a group is committed
+     */
+    public void setGroupSize(int bytes) {
+        groupSize = bytes;
+    }
+
+    /**
+     * Retrieves how many bytes of records are collected before they are
+     * committed as one group
+     *
+     * @return the size at which a group is committed
+     */
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Sets whether every commit forces the log to the disk. Without syncing a
+     * committed group survives a crash of the process but not necessarily of
+     * the machine, and commits are much cheaper.
+     *
+     * @param enabled true to force every commit to the disk
+     */
+    public void setSyncing(boolean enabled) {
+        syncing = enabled;
+    }
+
+    /**
+     * Checks whether every commit forces the log to the disk
+     *
+     * @return true if every commit forces the log to the disk
+     */
+    public boolean isSyncing() {
+        return syncing;
+    }
+
+    /**
+     * Sets the size of the log above which a commit takes a checkpoint
+     *
+     * @param bytes the size of the log at which a checkpoint is taken, or 0
+     * to only take checkpoints when asked for
+     */
+    public void setCheckpointSize(long bytes) {
+        checkpointSize = bytes;
+    }
+
+    /**
+     * Retrieves the size of the log above which a commit takes a checkpoint
+     *
+     * @return the size of the log at which a checkpoint is taken, or 0 when
+     * checkpoints are only taken when asked for
+     */
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    /**
+     * Writes every record collected so far to the log as one group, forcing
+     * it to the disk if syncing is on, so that every change made before it
+     * survives a crash
+     *
+     * @throws IOException when the log cannot be written
+     */
+    public void commit() throws IOException {
+        checkOpen();
+        int length = group.size() - GROUP_HEADER;
+        if (length == 0) {
+            return;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(group.array(), GROUP_HEADER, length);
+        ByteBuffer buffer = ByteBuffer.wrap(group.array(), 0, group.size());
+        buffer.putInt(0, length);
+        buffer.putInt(4, (int) checksum.getValue());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (syncing) {
+            channel.force(false);
+        }
+        group.reset();
+
+        if (checkpointSize > 0 && channel.position() >= checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the whole family to a new checkpoint and starts the log over.
+     * The checkpoint is forced to the disk and then replaces the previous
+     * one, so that a crash at any point leaves either the previous checkpoint
+     * and its log or the new checkpoint.
+     *
+     * @throws IOException when the checkpoint or the log cannot be written
+     */
+    public void checkpoint() throws IOException {
+        checkOpen();
+        File temporary = new File(directory, CHECKPOINT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(file));
+            stream.writeInt(CHECKPOINT_MAGIC);
+            stream.writeLong(checkpoint + 1);
+            stream.writeByte((root.isWriteBehind() ? WRITE_BEHIND_MODE : 0) | (root.isKeyIndexed() ? KEY_INDEXED_MODE : 0)
+                    | (root.hasSubtreeSummaries() ? SUMMARIZED_MODE : 0));
+            format.write(root, stream);
+            stream.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // UNTIL THE LOG NAMES THE NEW CHECKPOINT IT IS IGNORED AS OLDER
+        checkpoint++;
+        restart();
+        group.reset();
+        number();
+    }
+
+    /**
+     * Commits every record collected so far and stops recording changes to
+     * the family, which may still be used afterwards
+     *
+     * @throws IOException when the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            commit();
+        } finally {
+            closed = true;
+            root.setLog(null);
+            channel.close();
+        }
+    }
+
+    // RECORDING METHODS, CALLED BY THE MAPS OF THE FAMILY ONCE A CHANGE IS MADE
+    void put(TieredMap<K, V> map, K key, V value) {
+        int id = nearest(map);
+        try {
+            out.writeByte(PUT);
+            FamilyFormat.writeLength(out, id);
+            format.writeObject(out, keys, key);
+            format.writeObject(out, values, value);
+        } catch (IOException e) {
+            throw failure(e);
+        }
+        recorded();
+    }
+
+    void putAll(TieredMap<K, V> map, Map<? extends K, ? extends V> entries) {
+        int id = nearest(map);
+        try {
+            out.writeByte(PUT_ALL);
+            FamilyFormat.writeLength(out, id);
+            FamilyFormat.writeLength(out, entries.size());
+            for (Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                format.writeObject(out, keys, entry.getKey());
+                format.writeObject(out, values, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw failure(e);
+        }
+        recorded();
+    }
+
+    void remove(TieredMap<K, V> map, Object key) {
+        record(REMOVE, map, key);
+    }
+
+    void removeAll(TieredMap<K, V> map, Collection<?> batch) {
+        Integer id = ids.get(map);
+        if (id == null) {
+            return;
+        }
+        try {
+            out.writeByte(REMOVE_ALL);
+            FamilyFormat.writeLength(out, id);
+            FamilyFormat.writeLength(out, batch.size());
+            for (Object key : batch) {
+                format.writeObject(out, keys, cast(key));
+            }
+        } catch (IOException e) {
+            throw failure(e);
+        }
+        recorded();
+    }
+
+    void removeLocal(TieredMap<K, V> map, Object key) {
+        record(REMOVE_LOCAL, map, key);
+    }
+
+    void replace(TieredMap<K, V> map, K key, V value) {
+        Integer id = ids.get(map);
+        if (id == null) {
+            return;
+        }
+        try {
+            out.writeByte(REPLACE);
+            FamilyFormat.writeLength(out, id);
+            format.writeObject(out, keys, key);
+            format.writeObject(out, values, value);
+        } catch (IOException e) {
+            throw failure(e);
+        }
+        recorded();
+    }
+
+    void inherit(TieredMap<K, V> map, K key) {
+        record(INHERIT, map, key);
+    }
+
+    void child(TieredMap<K, V> parent, TieredMap<K, V> map) {
+        if (record(CHILD, parent, null)) {
+            add(map);
+        }
+    }
+
+    void clone(TieredMap<K, V> source, TieredMap<K, V> map) {
+        if (record(CLONE, source, null)) {
+            add(map);
+        }
+    }
+
+    void detach(TieredMap<K, V> map) {
+        if (record(DETACH, map, null)) {
+            drop(map);
+        }
+    }
+
+    void clear(TieredMap<K, V> map) {
+        record(CLEAR, map, null);
+    }
+
+    void clearSubtree(TieredMap<K, V> map) {
+        record(CLEAR_SUBTREE, map, null);
+    }
+
+    void flush(TieredMap<K, V> root) {
+        record(FLUSH, root, null);
+    }
+
+    void settle(TieredMap<K, V> root, K key) {
+        record(SETTLE, root, key);
+    }
+
+    void writeBehind(TieredMap<K, V> root, boolean enabled) {
+        record(enabled ? WRITE_BEHIND : IMMEDIATE, root, null);
+    }
+
+    void keyIndexed(TieredMap<K, V> root, boolean enabled) {
+        record(enabled ? KEY_INDEXED : UNINDEXED, root, null);
+    }
+
+    void summarized(TieredMap<K, V> root, boolean enabled) {
+        record(enabled ? SUMMARIZED : UNSUMMARIZED, root, null);
+    }
+
+    // INTERNAL METHODS
+    // RECORDS A CHANGE TAKING AT MOST A KEY, IF THE MAP IS IN THE FAMILY
+    private boolean record(int change, TieredMap<K, V> map, Object key) {
+        Integer id = ids.get(map);
+        if (id == null) {
+            return false;
+        }
+        try {
+            out.writeByte(change);
+            FamilyFormat.writeLength(out, id);
+            if (change == REMOVE || change == REMOVE_LOCAL || change == INHERIT || change == SETTLE) {
+                format.writeObject(out, keys, cast(key));
+            }
+        } catch (IOException e) {
+            throw failure(e);
+        }
+        recorded();
+        return true;
+    }
+
+    // COMMITS THE GROUP ONCE IT IS FULL
+    private void recorded() {
+        if (group.size() - GROUP_HEADER >= groupSize) {
+            try {
+                commit();
+            } catch (IOException e) {
+                throw failure(e);
+            }
+        }
+    }
+
+    // THE NUMBER OF A MAP, OR OF ITS NEAREST ANCESTOR AMONG THE CHILDREN OF
+    // ITS PARENT, WHICH A PUT HAS THE SAME EFFECT ON
+    private int nearest(TieredMap<K, V> map) {
+        for (TieredMap<K, V> current = map; current != null; current = current.getParent()) {
+            Integer id = ids.get(current);
+            if (id != null) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("The map is not part of the logged family");
+    }
+
+    // NUMBERS EVERY MAP OF THE FAMILY, PARENTS BEFORE CHILDREN
+    private void number() {
+        ids.clear();
+        maps.clear();
+        Deque<TieredMap<K, V>> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            TieredMap<K, V> map = pending.pop();
+            add(map);
+            List<TieredMap<K, V>> children = new ArrayList<>(map.getChildList());
+            for (int i = children.size() - 1; i >= 0; i--) {
+                pending.push(children.get(i));
+            }
+        }
+    }
+
+    private void add(TieredMap<K, V> map) {
+        ids.put(map, maps.size());
+        maps.add(map);
+    }
+
+    // FORGETS A DETACHED MAP AND EVERY MAP BELOW IT
+    private void drop(TieredMap<K, V> map) {
+        Deque<TieredMap<K, V>> pending = new ArrayDeque<>();
+        pending.push(map);
+        while (!pending.isEmpty()) {
+            TieredMap<K, V> current = pending.pop();
+            Integer id = ids.remove(current);
+            if (id != null) {
+                maps.set(id, null);
+            }
+            for (TieredMap<K, V> child : current.getChildList()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    // APPLIES EVERY INTACT GROUP OF A LOG WRITTEN SINCE THE CHECKPOINT, AND
+    // RETURNS WHERE THE LAST ONE ENDS, OR 0 IF THE LOG IS TO START OVER
+    private long replay(File file) throws IOException {
+        long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (size < HEADER || in.readInt() != LOG_MAGIC || in.readLong() != checkpoint) {
+                return 0;
+            }
+            long end = HEADER;
+            CRC32 checksum = new CRC32();
+            while (end + GROUP_HEADER <= size) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length <= 0 || length > size - end - GROUP_HEADER) {
+                    break;
+                }
+                byte[] records = new byte[length];
+                in.readFully(records);
+                checksum.reset();
+                checksum.update(records, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(records)));
+                end += GROUP_HEADER + length;
+            }
+            return end;
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        while (in.available() > 0) {
+            int change = in.readUnsignedByte();
+            int id = FamilyFormat.readLength(in);
+            TieredMap<K, V> map = id < maps.size() ? maps.get(id) : null;
+            if (map == null) {
+                throw new IOException("Corrupt family log: no map " + id);
+            }
+            switch (change) {
+                case PUT:
+                    map.put(format.readObject(in, keys), format.readObject(in, values));
+                    break;
+                case PUT_ALL:
+                    int entries = FamilyFormat.readLength(in);
+                    Map<K, V> batch = new HashMap<>();
+                    for (int i = 0; i < entries; i++) {
+                        batch.put(format.readObject(in, keys), format.readObject(in, values));
+                    }
+                    map.putAll(batch);
+                    break;
+                case REMOVE:
+                    map.remove(format.readObject(in, keys));
+                    break;
+                case REMOVE_ALL:
+                    int count = FamilyFormat.readLength(in);
+                    List<K> removed = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        removed.add(format.readObject(in, keys));
+                    }
+                    map.removeAll(removed);
+                    break;
+                case REMOVE_LOCAL:
+                    map.keySet().remove(format.readObject(in, keys));
+                    break;
+                case REPLACE:
+                    map.replaceLocal(format.readObject(in, keys), format.readObject(in, values));
+                    break;
+                case INHERIT:
+                    map.inherit(format.readObject(in, keys));
+                    break;
+                case CHILD:
+                    add(map.child());
+                    break;
+                case CLONE:
+                    add(map.clone());
+                    break;
+                case DETACH:
+                    drop(map);
+                    map.detach();
+                    break;
+                case CLEAR:
+                    map.clear();
+                    break;
+                case CLEAR_SUBTREE:
+                    map.clearSubtree();
+                    break;
+                case FLUSH:
+                    map.flush();
+                    break;
+                case SETTLE:
+                    map.settle(format.readObject(in, keys));
+                    break;
+                case WRITE_BEHIND:
+                case IMMEDIATE:
+                    map.setWriteBehind(change == WRITE_BEHIND);
+                    break;
+                case KEY_INDEXED:
+                case UNINDEXED:
+                    map.setKeyIndexed(change == KEY_INDEXED);
+                    break;
+                case SUMMARIZED:
+                case UNSUMMARIZED:
+                    map.setSubtreeSummaries(change == SUMMARIZED);
+                    break;
+                default:
+                    throw new IOException("Corrupt family log: unknown change " + change);
+            }
+        }
+    }
+
+    // EMPTIES THE LOG AND NAMES THE CURRENT CHECKPOINT IN ITS HEADER. IT IS
+    // EMPTIED FIRST, SO THAT IT NEVER NAMES A CHECKPOINT ALONGSIDE RECORDS
+    // MADE BEFORE IT
+    private void restart() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(LOG_MAGIC).putLong(checkpoint).flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K cast(Object key) {
+        return (K) key;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The log was closed");
+        }
+    }
+
+    private static IllegalStateException failure(IOException e) {
+        return new IllegalStateException("Could not write to the family log", e);
+    }
+
+    // INTERNAL CLASSES
+    // COLLECTS RECORDS AFTER ROOM FOR THE HEADER OF THEIR GROUP
+    private static final class Group extends ByteArrayOutputStream {
+
+        Group() {
+            super(DEFAULT_GROUP_SIZE + 1024);
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            count = GROUP_HEADER;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.List;
+
+/**
+ * Variant of a TieredMap for primitive int keys, which follows the same three
+ * rules and offers the same parent and child operations. Every map keeps its
+ * data in a pair of flat arrays with open addressing, so that put, get,
+ * containsKey, inherit and the family lookups never box a key or allocate
+ * anything other than a bigger table when a map fills up, and remove only
+ * allocates to walk the maps below a map with children.
+ *
+ * Unlike TieredMap, values may not be null.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <V> the type of object to store under specific keys
+ */
+public class IntObjTieredMap<V> extends PrimitiveTieredMap<IntObjTieredMap<V>, V> {
+
+    // THE KEYS, IN THE SLOTS OF THEIR VALUES
+    private int[] keys;
+
+    // CREATION METHODS
+    // - constructor (2)
+    // - getNewRoot
+    /**
+     * Basic constructor which creates a new root map - that is, a map without a
+     * parent. As a root map this map will contain more data than any of its
+     * children
+     */
+    public IntObjTieredMap() {
+        super(new Object[MIN_CAPACITY], 0);
+        keys = new int[MIN_CAPACITY];
+    }
+
+    /**
+     * Constructor to create a new root map based off of another map of the same
+     * kind. The new map will contain the same data as the source map but will
+     * itself be a root with no other connections to the source
+     *
+     * @param source the map to copy
+     */
+    public IntObjTieredMap(IntObjTieredMap<V> source) {
+        super(source.values.clone(), source.size);
+        keys = source.keys.clone();
+    }
+
+    /**
+     * Method to create a new root map with no reference this map, initialized
+     * with a copy of the data contained in the map
+     *
+     * @return a new map of the same type as this one with a copy of the data
+     * contained in this one
+     */
+    public IntObjTieredMap<V> getNewRoot() {
+        return new IntObjTieredMap<>(this);
+    }
+
+    // MAP METHODS
+    // - containsKey
+    // - get
+    // - keys
+    // - put
+    // - putAll
+    // - remove
+    /**
+     * Checks if this map holds a value under a key
+     *
+     * @param key the key to check
+     * @return true if a value is stored under the key in this map
+     */
+    public boolean containsKey(int key) {
+        return values[slot(key)] != null;
+    }
+
+    /**
+     * Retrieves the value stored under a key in this map
+     *
+     * @param key the key to look up
+     * @return the value under the key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[slot(key)];
+    }
+
+    /**
+     * Copies the keys held by this map
+     *
+     * @return a new array of every key in this map, in no particular order
+     */
+    public int[] keys() {
+        int[] copy = new int[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                copy[n++] = keys[i];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Method to put a value in this map as well as all greater maps in the
+     * hierarchy
+     *
+     * @param key the key to use for storage
+     * @param value the value to store
+     * @return the root value being replaced, or null if none
+     * @throws NullPointerException when the value is null
+     */
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        V previous = null;
+        for (IntObjTieredMap<V> map = this; map != null; map = map.parent) {
+            previous = map.putLocal(key, value);
+        }
+        return previous;
+    }
+
+    /**
+     * Copies all of the mappings from another map to this map as well as all
+     * higher maps in the hierarchy. Please note that this will replace any
+     * existing key-value pairs.
+     *
+     * @param map the source map to add from
+     */
+    @SuppressWarnings("unchecked")
+    public void putAll(IntObjTieredMap<? extends V> map) {
+        for (int i = 0; i < map.values.length; i++) {
+            if (map.values[i] != null) {
+                put(map.keys[i], (V) map.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Method to remove a value from a given key from this map and all maps
+     * below it
+     *
+     * @param key the key to remove
+     * @return the value previously held at the given key
+     */
+    public V remove(int key) {
+        if (!children.isEmpty()) {
+            List<IntObjTieredMap<V>> maps = subtree();
+            for (int i = 1; i < maps.size(); i++) {
+                maps.get(i).removeLocal(key);
+            }
+        }
+        return removeLocal(key);
+    }
+
+    // CUSTOM METHODS
+    // - inherit
+    // - containsKeyInFamily
+    /**
+     * Inherits a value as a given key from a map higher up in the hierarchy.
+     * Note that this does nothing when used on a root map, and puts that value
+     * under the same key as its parents.
+     *
+     * @param key the key at which the value to inherit lays
+     * @return the inherited value
+     */
+    public V inherit(int key) {
+        V value = getRoot().get(key);
+        if (value != null) {
+            for (IntObjTieredMap<V> map = this; map.parent != null; map = map.parent) {
+                map.putLocal(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Checks if a value exists for a given key anywhere in the entirety of the
+     * upper hierarchy. This does not however guarantee that a value exists
+     * under the key in this particular instance.
+     *
+     * @param key the key value to check
+     * @return true if a valid value exists under the provided key somewhere in
+     * the structure
+     */
+    public boolean containsKeyInFamily(int key) {
+        return getRoot().containsKey(key);
+    }
+
+    // STATIC METHODS
+    // - toGraph
+    // - toPartialGraph
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * the entire family graph this belongs to
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure
+     */
+    public static String toGraph(IntObjTieredMap<?> map) {
+        return plot(map.getRoot());
+    }
+
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * this map and all of its children
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure with this as its
+     * head
+     */
+    public static String toPartialGraph(IntObjTieredMap<?> map) {
+        return plot(map);
+    }
+
+    // KEY METHODS
+    @Override
+    IntObjTieredMap<V> newMap() {
+        return new IntObjTieredMap<>();
+    }
+
+    @Override
+    void appendKey(StringBuilder s, int slot) {
+        s.append(keys[slot]);
+    }
+
+    // INTERNAL TABLE METHODS
+    // THE SLOT HOLDING A KEY, OR THE EMPTY SLOT IT WOULD GO IN
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putLocal(int key, V value) {
+        int i = slot(key);
+        V previous = (V) values[i];
+        if (previous == null) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+        return previous;
+    }
+
+    // EMPTIES A SLOT AND SHIFTS BACK ANY FOLLOWING ENTRY THAT PROBED PAST IT
+    @SuppressWarnings("unchecked")
+    private V removeLocal(int key) {
+        int hole = slot(key);
+        V previous = (V) values[hole];
+        if (previous == null) {
+            return null;
+        }
+
+        int mask = keys.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TieredMap family kept in a directory, whose root lives in memory-mapped
+ * files so that opening even a root of millions of entries only maps its
+ * files. Gets and containsKeyInFamily are served right away, with the
+ * operating system reading each page in when it is first touched, and every
+ * page of the root files changed is written back by the next sync, as
+ * described by MappedMap. The maps below the root, which are expected to be
+ * far smaller, are kept in memory and written in the format of FamilyFormat
+ * whenever the family is synced, and read back when it is opened.
+ *
+ * The directory always holds the family as it was when sync or close last
+ * returned. Sync writes the layout of the root files and the maps below the
+ * root to a new file and then renames it over the old one. Until then, the
+ * root leaves every file the old layout names as it is: the pages changed in
+ * those files are first written to a journal named by the new layout, and
+ * only written over the files once that layout is in place, as described by
+ * MappedMap. A family whose process stopped without a sync thus opens as it
+ * was synced last, and the changes made since are lost unless they were
+ * recorded elsewhere, for example in a write-ahead log.
+ *
+ * Keys and values of the root are stored by Serializers, so values read from
+ * the root are new objects equal to those put, and neither may be null. The
+ * root leaves its files when a snapshot is taken and the root then changes,
+ * or when it is cleared after a snapshot. It is then kept in memory and
+ * moved into new files by the next sync. A family may only be used by one
+ * process at a time.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+public class MappedFamily<K, V> implements Closeable {
+
+    // "TMM3", AS THE INDEX OF "TMMF" LAYOUTS HASHED THE hashCode OF THE KEYS
+    // AND "TMM2" LAYOUTS NAMED NO JOURNAL, AND THE FILE HOLDING THE LAYOUT AND
+    // THE MAPS BELOW THE ROOT
+    private static final int MAGIC = 0x544D4D33;
+    private static final String LAYOUT = "family.layout";
+
+    private final File directory;
+    private final Serializer<K> keys;
+    private final Serializer<V> values;
+    private final TierStorage<K, V> storage;
+    private final FamilyFormat<K, V> format;
+    private final TieredMap<K, V> root;
+
+    // THE MAP WHOSE FILES THE LAYOUT DESCRIBES
+    private MappedMap<K, V> mapped;
+    private boolean closed;
+
+    private MappedFamily(File directory, Serializer<K> keys, Serializer<V> values, TierStorage<K, V> storage) throws IOException {
+        this.directory = directory;
+        this.keys = keys;
+        this.values = values;
+        this.storage = storage;
+        this.format = new FamilyFormat<>(keys, values);
+
+        File layout = new File(directory, LAYOUT);
+        if (!layout.isFile()) {
+            MappedMap.clean(directory, true);
+            mapped = new MappedMap<>(directory, keys, values, 0);
+            root = TieredMap.adopt(mapped, storage);
+            sync();
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(layout)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(layout + " is not a family layout");
+            }
+            mapped = new MappedMap<>(directory, keys, values, in);
+            root = TieredMap.adopt(mapped, storage);
+            int children = in.readInt();
+            for (int i = 0; i < children; i++) {
+                format.read(in, root, storage);
+            }
+        }
+    }
+
+    // CREATION METHODS
+    // - open (2)
+    /**
+     * Opens the family kept in a directory, or creates an empty one if the
+     * directory holds none, keeping every generation below the root in hash
+     * maps
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param directory the directory of the family, created if missing
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @return the open family
+     * @throws IOException when the family cannot be read
+     */
+    public static <K, V> MappedFamily<K, V> open(File directory, Serializer<K> keys, Serializer<V> values) throws IOException {
+        return open(directory, keys, values, TierStorage.<K, V>getDefault());
+    }
+
+    /**
+     * Opens the family kept in a directory, or creates an empty one if the
+     * directory holds none, keeping every generation below the root in the
+     * maps of a given storage
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param directory the directory of the family, created if missing
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @param storage the storage of every generation below the root
+     * @return the open family
+     * @throws IOException when the family cannot be read
+     */
+    public static <K, V> MappedFamily<K, V> open(File directory, Serializer<K> keys, Serializer<V> values, TierStorage<K, V> storage) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new MappedFamily<>(directory, keys, values, storage);
+    }
+
+    // FAMILY METHODS
+    // - getRoot
+    // - sync
+    // - close
+    /**
+     * Retrieves the root of the family
+     *
+     * @return the root map, whose entries live in the mapped files
+     */
+    public TieredMap<K, V> getRoot() {
+        return root;
+    }
+
+    /**
+     * Writes the entire family to the directory, applying any queued write
+     * of a write-behind family first. The pages of the root changed since the
+     * last sync are forced to the disk, in a journal for the files the old
+     * layout names, and the layout and the maps below the root are then
+     * written to a new file which replaces the old one once it is on the disk
+     * too. The journal is written over the files, and the files only the old
+     * layout named are deleted, once the new layout is in place.
+     *
+     * @throws IOException when the family cannot be written
+     * @throws IllegalStateException when the family was closed
+     */
+    public void sync() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The family was closed");
+        }
+        root.flush();
+
+        MappedMap<K, V> previous = null;
+        Map<K, V> data = root.getData();
+        if (data != mapped) {
+            // THE ROOT LEFT ITS FILES, SO IT MOVES INTO NEW ONES
+            MappedMap<K, V> moved = new MappedMap<>(directory, keys, values, mapped.getNextName());
+            moved.putAll(data);
+            root.setData(moved);
+            previous = mapped;
+            mapped = moved;
+        }
+        mapped.force();
+        syncDirectory();
+
+        File temporary = new File(directory, LAYOUT + ".tmp");
+        List<TieredMap<K, V>> children = new ArrayList<>(root.getChildList());
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            mapped.writeLayout(out);
+            out.writeInt(children.size());
+            for (TieredMap<K, V> child : children) {
+                format.write(child, out);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, LAYOUT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+
+        mapped.synced(!root.isDataShared());
+        if (previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Syncs the family for the last time. The root still lives in its files
+     * afterwards, but any later change to it is lost when the family is
+     * opened again.
+     *
+     * @throws IOException when the family cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            sync();
+            closed = true;
+        }
+    }
+
+    // FORCES THE ENTRIES OF THE DIRECTORY TO THE DISK, SO THAT THE FILES
+    // CREATED OR RENAMED IN IT ARE STILL THERE AFTER A CRASH. SOME PLATFORMS
+    // CANNOT OPEN A DIRECTORY, AND THEN LEAVE THIS TO THE FILE SYSTEM
+    private void syncDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
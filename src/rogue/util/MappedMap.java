@@ -0,0 +1,498 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Off-heap map whose index and segments are files of a directory mapped into
+ * memory, so that opening a map of any size only maps its files, and the
+ * operating system reads each page in the first time it is touched. Every
+ * change is made in the mapped buffers exactly as OffHeapMap makes it in
+ * memory, and every buffer the map outgrows is replaced by a new file, the
+ * old one being deleted.
+ *
+ * The files do not tell which of them are in use or how far each is filled.
+ * That layout is written separately, by MappedFamily. Every file the last
+ * layout written names is kept exactly as that layout describes it until the
+ * next layout is written. The files are mapped privately, so that a change
+ * only reaches the memory of the process, and the map notes every page of
+ * its buffers it writes. Before the next layout is written, the pages
+ * changed in files that layout names for the first time are written to
+ * them, and those changed in files the last layout names are written to a
+ * new journal file. The next layout names that journal, which is written
+ * over the files only once the layout is in place, and again when the map
+ * is opened if it was not. A file the map lets go of in the meantime is only
+ * deleted once the next layout is written. Opening the files of the last
+ * layout thus always finds the map as it was then, no matter how it changed
+ * since, while each sync only writes the pages changed since the last one,
+ * twice at most.
+ *
+ * The index hashes the bytes the Serializer writes for each key rather than
+ * its hashCode, which may differ in the next process that opens the files.
+ *
+ * A deleted file only frees its disk space once its buffer is unmapped, which
+ * happens when the buffer is garbage collected, and some platforms do not
+ * allow a mapped file to be deleted at all. Such files are deleted the next
+ * time the map is opened instead.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+class MappedMap<K, V> extends OffHeapMap<K, V> {
+
+    private static final String SUFFIX = ".buf";
+    private static final String JOURNAL = ".journal";
+    private static final int PAGE = 4096;
+
+    private File directory;
+
+    // THE NUMBER OF THE FILE OF EVERY MAPPED BUFFER, AND OF THE NEXT FILE
+    private Map<ByteBuffer, Integer> names;
+    private int nextName;
+
+    // THE BUFFERS THE LAST LAYOUT WRITTEN NAMES AND WHICH THE MAP STILL USES,
+    // AND THE NUMBERS OF THE FILES OF THOSE IT NO LONGER USES, ALL OF WHICH
+    // HAVE TO STAY AS THEY ARE UNTIL THE NEXT LAYOUT IS WRITTEN
+    private Set<ByteBuffer> stable;
+    private List<Integer> retired;
+
+    // THE PAGES WRITTEN IN EACH BUFFER SINCE THE LAST LAYOUT, AND THE NUMBER
+    // OF THE JOURNAL THE NEXT LAYOUT NAMES, OR -1
+    private Map<ByteBuffer, BitSet> dirty;
+    private int journal;
+
+    /**
+     * Creates an empty map in a directory, whose files are numbered from a
+     * given number on
+     *
+     * @param directory the directory of the files
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @param firstName the number of the first file to create
+     */
+    MappedMap(File directory, Serializer<K> keys, Serializer<V> values, int firstName) {
+        super(keys, values);
+        open(directory, firstName);
+        try {
+            // MOVES THE INDEX ALLOCATED BY THE CONSTRUCTOR INTO A FILE
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ByteBuffer index = allocate(MIN_SLOTS * SLOT);
+            out.writeInt(MIN_SLOTS);
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeInt(names.get(index));
+            out.writeInt(0);
+            readLayout(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), Collections.singletonMap(names.get(index), index));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create the index", e);
+        }
+    }
+
+    /**
+     * Opens a map from the files of a directory, as described by a layout
+     * written by writeLayout, first writing the journal the layout names over
+     * the files if it is still there. Every file which the layout does not
+     * name is deleted.
+     *
+     * @param directory the directory of the files
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @param layout the stream to read the layout from
+     * @throws IOException when a file cannot be mapped or the layout is
+     * corrupt
+     */
+    MappedMap(File directory, Serializer<K> keys, Serializer<V> values, DataInput layout) throws IOException {
+        super(keys, values);
+        int logged = layout.readInt();
+        int last = logged;
+        for (String file : list(directory)) {
+            last = Math.max(last, Integer.parseInt(file.substring(0, file.length() - SUFFIX.length())));
+        }
+        open(directory, last + 1);
+        if (logged >= 0 && journal(logged).isFile()) {
+            replay(journal(logged));
+        }
+        clean(directory, false);
+
+        readLayout(layout, new AbstractMap<Integer, ByteBuffer>() {
+            @Override
+            public ByteBuffer get(Object name) {
+                File file = file((Integer) name);
+                if (!file.isFile()) {
+                    return null;
+                }
+                try {
+                    ByteBuffer buffer = map(file, file.length(), false);
+                    names.put(buffer, (Integer) name);
+                    return buffer;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not map " + file, e);
+                }
+            }
+
+            @Override
+            public Set<Entry<Integer, ByteBuffer>> entrySet() {
+                return Collections.emptySet();
+            }
+        });
+        Set<Integer> named = new HashSet<>(names.values());
+        for (String file : list(directory)) {
+            if (!named.contains(Integer.parseInt(file.substring(0, file.length() - SUFFIX.length())))) {
+                new File(directory, file).delete();
+            }
+        }
+        stable.addAll(names.keySet());
+    }
+
+    // STORAGE HOOKS
+    @Override
+    ByteBuffer allocate(int capacity) {
+        if (names == null) {
+            // ONLY THE FIRST INDEX, ALLOCATED BY THE CONSTRUCTOR OF THE
+            // SUPERCLASS AND REPLACED RIGHT AFTER
+            return super.allocate(capacity);
+        }
+        int name = nextName++;
+        try {
+            ByteBuffer buffer = map(file(name), capacity, true);
+            names.put(buffer, name);
+            return buffer;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create " + file(name), e);
+        }
+    }
+
+    @Override
+    void release(ByteBuffer buffer) {
+        Integer name = names == null ? null : names.remove(buffer);
+        if (name != null) {
+            dirty.remove(buffer);
+        }
+        if (name != null && stable.remove(buffer)) {
+            retired.add(name);
+        } else if (name != null) {
+            file(name).delete();
+        }
+    }
+
+    @Override
+    boolean keeps(ByteBuffer buffer) {
+        return !stable.isEmpty() && stable.contains(buffer);
+    }
+
+    @Override
+    void writing(ByteBuffer buffer, int offset, int length) {
+        if (names == null || length <= 0) {
+            return;
+        }
+        BitSet pages = dirty.get(buffer);
+        if (pages == null) {
+            pages = new BitSet();
+            dirty.put(buffer, pages);
+        }
+        pages.set(offset / PAGE, (offset + length - 1) / PAGE + 1);
+    }
+
+    @Override
+    boolean hashesBytes() {
+        return true;
+    }
+
+    // PERSISTENCE METHODS
+    // - writeLayout
+    // - force
+    // - synced
+    // - delete
+    // - getNextName
+    /**
+     * Writes the layout of the map, naming every buffer by its file and the
+     * journal written by force, if any
+     *
+     * @param out the stream to write to
+     * @throws IOException when the stream cannot be written
+     */
+    void writeLayout(DataOutput out) throws IOException {
+        out.writeInt(journal);
+        writeLayout(out, names);
+    }
+
+    /**
+     * Writes every page changed since the last layout out to the disk, before
+     * the next layout is written. The pages of files the last layout named go
+     * to a new journal instead of those files.
+     *
+     * @throws IOException when a file cannot be written
+     */
+    void force() throws IOException {
+        List<ByteBuffer> logged = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, BitSet> entry : dirty.entrySet()) {
+            if (stable.contains(entry.getKey())) {
+                logged.add(entry.getKey());
+            } else {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+        journal = -1;
+        if (logged.isEmpty()) {
+            return;
+        }
+        journal = nextName++;
+        try (FileOutputStream file = new FileOutputStream(journal(journal))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            byte[] bytes = new byte[PAGE];
+            for (ByteBuffer buffer : logged) {
+                BitSet pages = dirty.get(buffer);
+                for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+                    int length = Math.min(PAGE, buffer.capacity() - page * PAGE);
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(page * PAGE);
+                    source.get(bytes, 0, length);
+                    out.writeInt(names.get(buffer));
+                    out.writeInt(page * PAGE);
+                    out.writeInt(length);
+                    out.write(bytes, 0, length);
+                }
+            }
+            out.writeInt(-1);
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Keeps every file of the map as it is from now on, as the layout just
+     * written names them. The journal the layout names is written over the
+     * files and deleted, as are the files the map let go of since the
+     * previous layout. The files are then mapped again unless a snapshot may
+     * still be reading the buffers, which frees the memory holding the pages
+     * the process changed.
+     *
+     * @param remap true to map the changed files again
+     * @throws IOException when a file cannot be written
+     */
+    void synced(boolean remap) throws IOException {
+        if (journal >= 0) {
+            for (Map.Entry<ByteBuffer, BitSet> entry : dirty.entrySet()) {
+                if (stable.contains(entry.getKey())) {
+                    write(entry.getKey(), entry.getValue());
+                }
+            }
+            journal(journal).delete();
+            journal = -1;
+        }
+        if (remap) {
+            for (ByteBuffer buffer : dirty.keySet()) {
+                Integer name = names.remove(buffer);
+                ByteBuffer fresh = map(file(name), buffer.capacity(), false);
+                swap(buffer, fresh);
+                names.put(fresh, name);
+            }
+        }
+        dirty.clear();
+        stable.clear();
+        stable.addAll(names.keySet());
+        for (Integer name : retired) {
+            file(name).delete();
+        }
+        retired.clear();
+    }
+
+    /**
+     * Deletes every file of the map, which may then no longer be changed
+     */
+    void delete() {
+        for (Integer name : names.values()) {
+            file(name).delete();
+        }
+        for (Integer name : retired) {
+            file(name).delete();
+        }
+        names.clear();
+        stable.clear();
+        retired.clear();
+        dirty.clear();
+    }
+
+    /**
+     * Retrieves the number the next file of the map would get, above that of
+     * every file of the map
+     *
+     * @return the number of the next file
+     */
+    int getNextName() {
+        return nextName;
+    }
+
+    // INTERNAL METHODS
+    private void open(File directory, int firstName) {
+        this.directory = directory;
+        this.names = new IdentityHashMap<>();
+        this.nextName = firstName;
+        this.stable = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        this.retired = new ArrayList<>();
+        this.dirty = new IdentityHashMap<>();
+        this.journal = -1;
+    }
+
+    private File file(int name) {
+        return new File(directory, name + SUFFIX);
+    }
+
+    private File journal(int name) {
+        return new File(directory, name + JOURNAL);
+    }
+
+    // WRITES THE GIVEN PAGES OF A BUFFER TO ITS FILE AND FORCES THEM TO THE
+    // DISK
+    private void write(ByteBuffer buffer, BitSet pages) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(names.get(buffer)).toPath(), StandardOpenOption.WRITE)) {
+            for (int page = pages.nextSetBit(0); page >= 0; page = pages.nextSetBit(page + 1)) {
+                int end = pages.nextClearBit(page);
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.limit(Math.min(end * PAGE, buffer.capacity()));
+                bytes.position(page * PAGE);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, bytes.position());
+                }
+                page = end;
+            }
+            channel.force(false);
+        }
+    }
+
+    // WRITES EVERY PAGE OF A JOURNAL OVER THE FILES IT NAMES, AND DELETES IT
+    // ONCE THEY ARE ON THE DISK
+    private void replay(File file) throws IOException {
+        Map<Integer, FileChannel> channels = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int name = in.readInt(); name >= 0; name = in.readInt()) {
+                int offset = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                FileChannel channel = channels.get(name);
+                if (channel == null) {
+                    channel = FileChannel.open(file(name).toPath(), StandardOpenOption.WRITE);
+                    channels.put(name, channel);
+                }
+                ByteBuffer source = ByteBuffer.wrap(bytes);
+                while (source.hasRemaining()) {
+                    channel.write(source, offset + source.position());
+                }
+            }
+            for (FileChannel channel : channels.values()) {
+                channel.force(false);
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is corrupt", e);
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+        file.delete();
+    }
+
+    // MAPS A FILE, CREATING IT FILLED WITH ZEROS IF ASKED TO
+    private static ByteBuffer map(File file, long length, boolean create) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to map");
+        }
+        StandardOpenOption open = create ? StandardOpenOption.CREATE_NEW : StandardOpenOption.READ;
+        try (FileChannel channel = FileChannel.open(file.toPath(), open, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.PRIVATE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    /**
+     * Deletes every journal in a directory, and every file of a buffer too
+     * if asked to
+     *
+     * @param directory the directory of the files
+     * @param buffers true to delete the files of the buffers as well
+     */
+    static void clean(File directory, boolean buffers) {
+        String[] files = directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(JOURNAL)) {
+                    new File(directory, file).delete();
+                }
+            }
+        }
+        if (buffers) {
+            for (String file : list(directory)) {
+                new File(directory, file).delete();
+            }
+        }
+    }
+
+    // THE NAMES OF THE FILES OF THE BUFFERS IN A DIRECTORY
+    static String[] list(File directory) {
+        String[] files = directory.list();
+        if (files == null) {
+            return new String[0];
+        }
+        int count = 0;
+        for (String file : files) {
+            if (file.endsWith(SUFFIX) && file.length() > SUFFIX.length()
+                    && file.substring(0, file.length() - SUFFIX.length()).matches("[0-9]{1,9}")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+}
@@ -0,0 +1,808 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map which keeps its entries in direct byte buffers outside of the Java heap,
+ * so that even tens of millions of entries add nothing for the garbage
+ * collector to trace. Keys and values are converted to bytes by a Serializer
+ * when they are put, and back into new objects whenever they are read, so
+ * the objects returned are equal to but never the same as those put.
+ *
+ * Entries are appended as records to segments of at most SEGMENT_LIMIT bytes
+ * and found through an open addressing index of record addresses. Replacing a
+ * value with one of the same length rewrites it in place; otherwise the old
+ * record is marked dead and a new one is appended, and the records are
+ * compacted once dead ones take more room than live ones. Looking a key up
+ * writes it into a buffer kept by each thread and compares bytes, so
+ * containsKey creates no garbage at all. Reads may thus run concurrently with
+ * each other, as when a snapshot shares the map, but not with writes.
+ *
+ * The index holds at most 2^27 slots, so a map may hold at most about a
+ * hundred million entries. Neither keys nor values may be null.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+class OffHeapMap<K, V> extends AbstractMap<K, V> {
+
+    // RECORD LAYOUT: STATE, HASH, KEY LENGTH, VALUE LENGTH, KEY BYTES, VALUE BYTES
+    private static final int HEADER = 16;
+    private static final int LIVE = 0;
+    private static final int DEAD = 1;
+
+    // INDEX SLOT LAYOUT: HASH, RECORD ADDRESS PLUS ONE OR 0 WHILE EMPTY
+    static final int SLOT = 12;
+    static final int MIN_SLOTS = 64;
+    private static final int MAX_SLOTS = 1 << 27;
+
+    // SEGMENTS DOUBLE IN SIZE UP TO THE LIMIT, AFTER WHICH NEW ONES ARE ADDED
+    static final int SEGMENT_LIMIT = 1 << 30;
+    private static final int SEGMENT_BITS = 30;
+    private static final int MIN_SEGMENT = 4096;
+
+    // DEAD BYTES BELOW WHICH THE RECORDS ARE NEVER COMPACTED
+    private static final long COMPACT_MIN = 1 << 20;
+
+    // THE BYTES OF THE KEY LAST LOOKED FOR BY EACH THREAD, IN ANY MAP
+    private static final ThreadLocal<Probe> PROBES = new ThreadLocal<Probe>() {
+        @Override
+        protected Probe initialValue() {
+            return new Probe();
+        }
+    };
+
+    private final Serializer<K> keys;
+    private final Serializer<V> values;
+
+    private ByteBuffer index;
+    private int slots;
+    private int size;
+
+    private ByteBuffer[] segments;
+    private int[] used;
+    private int segmentCount;
+    private long live;
+    private long dead;
+    private int modCount;
+
+    /**
+     * Creates an empty map
+     *
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     */
+    OffHeapMap(Serializer<K> keys, Serializer<V> values) {
+        this.keys = keys;
+        this.values = values;
+        slots = MIN_SLOTS;
+        index = allocate(slots * SLOT);
+        segments = new ByteBuffer[4];
+        used = new int[4];
+    }
+
+    /**
+     * Creates a map holding the same entries as another one
+     *
+     * @param source the map to copy
+     */
+    OffHeapMap(OffHeapMap<K, V> source) {
+        keys = source.keys;
+        values = source.values;
+        slots = source.slots;
+        size = source.size;
+        index = copyOf(source.index, slots * SLOT, slots * SLOT);
+        segments = new ByteBuffer[source.segments.length];
+        used = source.used.clone();
+        segmentCount = source.segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = copyOf(source.segments[i], used[i], source.segments[i].capacity());
+        }
+        live = source.live;
+        dead = source.dead;
+    }
+
+    // STORAGE HOOKS
+    // - allocate
+    // - release
+    // - keeps
+    // - writing
+    // - swap
+    // - hashesBytes
+    // - writeLayout
+    // - readLayout
+    /**
+     * Allocates a zeroed buffer. The index and every segment of the map come
+     * from here. Note that this is first called by the constructor, before
+     * any field of a subclass is set.
+     *
+     * @param capacity the size of the buffer in bytes
+     * @return a new buffer
+     */
+    ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Called once the map no longer uses a buffer it allocated, which it then
+     * never touches again
+     *
+     * @param buffer the buffer let go of
+     */
+    void release(ByteBuffer buffer) {
+    }
+
+    /**
+     * Tells whether the map should rather replace one of its buffers with a
+     * new one than empty all of it in place, as when every byte overwritten
+     * costs more than a new buffer. Only the index and the first segment are
+     * ever emptied, by clear and when the records are compacted.
+     *
+     * @param buffer a buffer of the map
+     * @return true to replace the buffer instead of emptying it
+     */
+    boolean keeps(ByteBuffer buffer) {
+        return false;
+    }
+
+    /**
+     * Called before the map writes any bytes of one of its buffers, whether
+     * it overwrites them or appends past the used part of a segment, so that
+     * it can be told which parts of the buffers changed
+     *
+     * @param buffer a buffer of the map
+     * @param offset the first byte about to be written
+     * @param length the number of bytes about to be written
+     */
+    void writing(ByteBuffer buffer, int offset, int length) {
+    }
+
+    /**
+     * Makes the map use a buffer holding the same bytes in place of one of
+     * its buffers, without releasing the one replaced
+     *
+     * @param old a buffer of the map
+     * @param fresh the buffer to use instead
+     */
+    final void swap(ByteBuffer old, ByteBuffer fresh) {
+        if (index == old) {
+            index = fresh;
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            if (segments[i] == old) {
+                segments[i] = fresh;
+            }
+        }
+    }
+
+    /**
+     * Tells whether the index hashes the bytes of every key rather than its
+     * hashCode. Only the bytes are sure to be the same in another process,
+     * so a map whose index outlives the process has to hash those.
+     *
+     * @return true to hash the bytes of the keys
+     */
+    boolean hashesBytes() {
+        return false;
+    }
+
+    /**
+     * Writes everything needed to find the entries of the map again in its
+     * buffers, naming every buffer by its number in a given map
+     *
+     * @param out the stream to write to
+     * @param names the number of every buffer of the map
+     * @throws IOException when the stream cannot be written
+     */
+    void writeLayout(DataOutput out, Map<ByteBuffer, Integer> names) throws IOException {
+        out.writeInt(slots);
+        out.writeInt(size);
+        out.writeLong(live);
+        out.writeLong(dead);
+        out.writeInt(names.get(index));
+        out.writeInt(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            out.writeInt(names.get(segments[i]));
+            out.writeInt(used[i]);
+        }
+    }
+
+    /**
+     * Makes the map hold the entries of buffers laid out as writeLayout wrote
+     * them, releasing every buffer it held before
+     *
+     * @param in the stream to read from
+     * @param buffers every buffer the layout may name, by number
+     * @throws IOException when the stream cannot be read or names a buffer
+     * which is missing or too small
+     */
+    void readLayout(DataInput in, Map<Integer, ByteBuffer> buffers) throws IOException {
+        int newSlots = in.readInt();
+        int newSize = in.readInt();
+        long newLive = in.readLong();
+        long newDead = in.readLong();
+        ByteBuffer newIndex = buffers.get(in.readInt());
+        int count = in.readInt();
+        if (Integer.bitCount(newSlots) != 1 || newSlots > MAX_SLOTS || newIndex == null
+                || newIndex.capacity() < newSlots * SLOT || count < 0 || newSize < 0) {
+            throw new IOException("Corrupt off-heap map layout");
+        }
+        ByteBuffer[] newSegments = new ByteBuffer[Math.max(4, count)];
+        int[] newUsed = new int[newSegments.length];
+        for (int i = 0; i < count; i++) {
+            newSegments[i] = buffers.get(in.readInt());
+            newUsed[i] = in.readInt();
+            if (newSegments[i] == null || newUsed[i] < 0 || newUsed[i] > newSegments[i].capacity()) {
+                throw new IOException("Corrupt off-heap map layout");
+            }
+        }
+
+        release(index);
+        for (int i = 0; i < segmentCount; i++) {
+            release(segments[i]);
+        }
+        slots = newSlots;
+        size = newSize;
+        live = newLive;
+        dead = newDead;
+        index = newIndex;
+        segments = newSegments;
+        used = newUsed;
+        segmentCount = count;
+        modCount++;
+    }
+
+    // MAP METHODS
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        Probe probe = probe(key);
+        return find(probe, hash(key, probe)) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Probe probe = probe(key);
+        int slot = find(probe, hash(key, probe));
+        return slot < 0 ? null : value(address(slot));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, true);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Probe probe = probe(key);
+        int slot = find(probe, hash(key, probe));
+        if (slot < 0) {
+            return null;
+        }
+        long address = address(slot);
+        V old = value(address);
+        kill(address);
+        delete(slot);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0 && dead == 0) {
+            return;
+        }
+        clearIndex();
+        for (int i = 1; i < segmentCount; i++) {
+            release(segments[i]);
+            segments[i] = null;
+        }
+        segmentCount = Math.min(segmentCount, 1);
+        if (segmentCount == 1 && keeps(segments[0])) {
+            ByteBuffer old = segments[0];
+            segments[0] = allocate(old.capacity());
+            release(old);
+        }
+        used[0] = 0;
+        size = 0;
+        live = 0;
+        dead = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new RecordIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void clear() {
+                OffHeapMap.this.clear();
+            }
+        };
+    }
+
+    // INTERNAL METHODS
+    private V put(K key, V value, boolean compact) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        if (compact && dead > live && dead > COMPACT_MIN) {
+            compact();
+        }
+
+        Probe probe = probe(key);
+        int hash = hash(key, probe);
+        int slot = find(probe, hash);
+        int length = values.sizeOf(value);
+        if (slot >= 0) {
+            long address = address(slot);
+            ByteBuffer segment = segment(address);
+            int offset = offset(address) + HEADER + probe.length;
+            V old = values.read(segment, offset, segment.getInt(offset(address) + 12));
+            if (segment.getInt(offset(address) + 12) == length) {
+                writing(segment, offset, length);
+                values.write(value, segment, offset);
+            } else {
+                kill(address);
+                long moved = append(probe, hash, value, length);
+                writing(index, slot * SLOT + 4, 8);
+                index.putLong(slot * SLOT + 4, moved + 1);
+            }
+            return old;
+        }
+
+        if ((size + 1) * 4L > slots * 3L) {
+            resize(slots * 2);
+        }
+        long address = append(probe, hash, value, length);
+        insert(hash, address);
+        size++;
+        modCount++;
+        return null;
+    }
+
+    // THE BYTES OF A KEY, IN THE PROBE OF THE CALLING THREAD
+    @SuppressWarnings("unchecked")
+    private Probe probe(Object key) {
+        Probe probe = PROBES.get();
+        probe.load(keys, (K) key);
+        return probe;
+    }
+
+    // THE SLOT HOLDING THE KEY IN A PROBE, OR -1 IF THERE IS NONE
+    private int find(Probe probe, int hash) {
+        int mask = slots - 1;
+        int i = hash & mask;
+        long address;
+        while ((address = index.getLong(i * SLOT + 4)) != 0) {
+            if (index.getInt(i * SLOT) == hash && matches(probe, address - 1)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(Probe probe, long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        return segment.getInt(offset + 8) == probe.length && equal(probe.bytes, 0, segment, offset + HEADER, probe.length);
+    }
+
+    private long address(int slot) {
+        return index.getLong(slot * SLOT + 4) - 1;
+    }
+
+    private ByteBuffer segment(long address) {
+        return segments[(int) (address >>> SEGMENT_BITS)];
+    }
+
+    private static int offset(long address) {
+        return (int) (address & (SEGMENT_LIMIT - 1));
+    }
+
+    private static int recordSize(ByteBuffer segment, int offset) {
+        return HEADER + segment.getInt(offset + 8) + segment.getInt(offset + 12);
+    }
+
+    private K key(long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        return keys.read(segment, offset + HEADER, segment.getInt(offset + 8));
+    }
+
+    private V value(long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        return values.read(segment, offset + HEADER + segment.getInt(offset + 8), segment.getInt(offset + 12));
+    }
+
+    // APPENDS A RECORD OF THE KEY IN A PROBE AND A VALUE, RETURNING ITS ADDRESS
+    private long append(Probe probe, int hash, V value, int length) {
+        long total = (long) HEADER + probe.length + length;
+        if (total > SEGMENT_LIMIT) {
+            throw new IllegalArgumentException("Entry of " + total + " bytes is too large");
+        }
+        long address = reserve((int) total);
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        writing(segment, offset, (int) total);
+        segment.putInt(offset, LIVE);
+        segment.putInt(offset + 4, hash);
+        segment.putInt(offset + 8, probe.length);
+        segment.putInt(offset + 12, length);
+        copy(probe.bytes, 0, segment, offset + HEADER, probe.length);
+        values.write(value, segment, offset + HEADER + probe.length);
+        live += total;
+        return address;
+    }
+
+    // FINDS ROOM FOR A RECORD AT THE END OF THE LAST SEGMENT
+    private long reserve(int total) {
+        int last = segmentCount - 1;
+        if (last < 0 || used[last] + (long) total > segments[last].capacity()) {
+            if (last >= 0 && used[last] + (long) total <= SEGMENT_LIMIT) {
+                long needed = Math.max(used[last] + (long) total, segments[last].capacity() * 2L);
+                ByteBuffer old = segments[last];
+                segments[last] = copyOf(old, used[last], segmentSize(needed));
+                release(old);
+            } else {
+                addSegment(segmentSize(total));
+                last++;
+            }
+        }
+        long address = ((long) last << SEGMENT_BITS) | used[last];
+        used[last] += total;
+        return address;
+    }
+
+    private void addSegment(int capacity) {
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+            used = Arrays.copyOf(used, segmentCount * 2);
+        }
+        segments[segmentCount] = allocate(capacity);
+        used[segmentCount] = 0;
+        segmentCount++;
+    }
+
+    // THE POWER OF TWO SEGMENT SIZE HOLDING AT LEAST A NUMBER OF BYTES
+    private static int segmentSize(long needed) {
+        long size = MIN_SEGMENT;
+        while (size < needed) {
+            size *= 2;
+        }
+        return (int) Math.min(size, SEGMENT_LIMIT);
+    }
+
+    private void kill(long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        writing(segment, offset, 4);
+        segment.putInt(offset, DEAD);
+        int total = recordSize(segment, offset);
+        live -= total;
+        dead += total;
+    }
+
+    private void insert(int hash, long address) {
+        int mask = slots - 1;
+        int i = hash & mask;
+        while (index.getLong(i * SLOT + 4) != 0) {
+            i = (i + 1) & mask;
+        }
+        writing(index, i * SLOT, SLOT);
+        index.putInt(i * SLOT, hash);
+        index.putLong(i * SLOT + 4, address + 1);
+    }
+
+    // EMPTIES A SLOT AND SHIFTS BACK ANY FOLLOWING SLOT THAT PROBED PAST IT
+    private void delete(int slot) {
+        int mask = slots - 1;
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            long address = index.getLong(i * SLOT + 4);
+            if (address == 0) {
+                break;
+            }
+            int hash = index.getInt(i * SLOT);
+            if (((i - (hash & mask)) & mask) >= ((i - hole) & mask)) {
+                writing(index, hole * SLOT, SLOT);
+                index.putInt(hole * SLOT, hash);
+                index.putLong(hole * SLOT + 4, address);
+                hole = i;
+            }
+        }
+        writing(index, hole * SLOT, SLOT);
+        index.putInt(hole * SLOT, 0);
+        index.putLong(hole * SLOT + 4, 0);
+        size--;
+        modCount++;
+    }
+
+    // REMOVES THE ENTRY OF A RECORD FOUND WITHOUT LOOKING ITS KEY UP
+    private void removeRecord(long address) {
+        int mask = slots - 1;
+        int i = segment(address).getInt(offset(address) + 4) & mask;
+        while (index.getLong(i * SLOT + 4) != address + 1) {
+            i = (i + 1) & mask;
+        }
+        kill(address);
+        delete(i);
+    }
+
+    private void resize(int capacity) {
+        if (capacity > MAX_SLOTS) {
+            throw new IllegalStateException("Off-heap map may not hold more than " + MAX_SLOTS * 3 / 4 + " entries");
+        }
+        ByteBuffer old = index;
+        int oldSlots = slots;
+        index = allocate(capacity * SLOT);
+        slots = capacity;
+        for (int i = 0; i < oldSlots; i++) {
+            long address = old.getLong(i * SLOT + 4);
+            if (address != 0) {
+                insert(old.getInt(i * SLOT), address - 1);
+            }
+        }
+        release(old);
+    }
+
+    // COPIES EVERY LIVE RECORD INTO NEW SEGMENTS AND REBUILDS THE INDEX
+    private void compact() {
+        ByteBuffer[] old = segments;
+        int[] oldUsed = used;
+        int oldCount = segmentCount;
+        segments = new ByteBuffer[4];
+        used = new int[4];
+        segmentCount = 0;
+        addSegment(segmentSize(live));
+        live = 0;
+        dead = 0;
+        clearIndex();
+
+        for (int s = 0; s < oldCount; s++) {
+            ByteBuffer segment = old[s];
+            for (int offset = 0; offset < oldUsed[s]; offset += recordSize(segment, offset)) {
+                if (segment.getInt(offset) == LIVE) {
+                    int total = recordSize(segment, offset);
+                    long address = reserve(total);
+                    writing(segment(address), offset(address), total);
+                    copy(segment, offset, segment(address), offset(address), total);
+                    live += total;
+                    insert(segment.getInt(offset + 4), address);
+                }
+            }
+            release(segment);
+        }
+        modCount++;
+    }
+
+    // EMPTIES EVERY SLOT OF THE INDEX
+    private void clearIndex() {
+        if (keeps(index)) {
+            ByteBuffer old = index;
+            index = allocate(old.capacity());
+            release(old);
+        } else {
+            writing(index, 0, slots * SLOT);
+            zero(index, slots * SLOT);
+        }
+    }
+
+    private ByteBuffer copyOf(ByteBuffer source, int length, int capacity) {
+        ByteBuffer copy = allocate(capacity);
+        writing(copy, 0, length);
+        ByteBuffer bytes = source.duplicate();
+        bytes.position(0);
+        bytes.limit(length);
+        copy.put(bytes);
+        copy.position(0);
+        return copy;
+    }
+
+    // A BUFFER FOR THE BYTES OF A SINGLE KEY, NEVER TAKEN FROM ALLOCATE
+    private static ByteBuffer scratch(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void copy(ByteBuffer source, int from, ByteBuffer target, int to, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            target.putLong(to + i, source.getLong(from + i));
+        }
+        for (; i < length; i++) {
+            target.put(to + i, source.get(from + i));
+        }
+    }
+
+    private static boolean equal(ByteBuffer a, int from, ByteBuffer b, int to, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (a.getLong(from + i) != b.getLong(to + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (a.get(from + i) != b.get(to + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void zero(ByteBuffer buffer, int length) {
+        for (int i = 0; i < length; i += 4) {
+            buffer.putInt(i, 0);
+        }
+    }
+
+    // THE HASH OF A KEY WHOSE BYTES A PROBE HOLDS
+    private int hash(Object key, Probe probe) {
+        return hashesBytes() ? probe.hash() : hash(key);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // INTERNAL CLASSES
+    // THE BYTES OF A KEY BEING LOOKED FOR
+    private static final class Probe {
+
+        private ByteBuffer bytes = scratch(64);
+        private int length;
+
+        <K> void load(Serializer<K> keys, K key) {
+            length = keys.sizeOf(key);
+            if (length > bytes.capacity()) {
+                bytes = scratch(Math.max(length, bytes.capacity() * 2));
+            }
+            keys.write(key, bytes, 0);
+        }
+
+        int hash() {
+            long h = length;
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                h = (h ^ bytes.getLong(i)) * 0x9E3779B97F4A7C15L;
+                h ^= h >>> 32;
+            }
+            for (; i < length; i++) {
+                h = (h ^ bytes.get(i)) * 0x9E3779B97F4A7C15L;
+            }
+            h *= 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32);
+        }
+    }
+
+    // WALKS THE RECORDS IN THE ORDER THEY WERE APPENDED, SKIPPING DEAD ONES.
+    // RECORDS APPENDED AFTER THE ITERATION STARTED ARE NOT VISITED, SO THAT A
+    // VALUE MOVED BY SETVALUE IS NOT SEEN TWICE
+    private final class RecordIterator implements Iterator<Entry<K, V>> {
+
+        private final int endSegment = segmentCount;
+        private final int endOffset = segmentCount == 0 ? 0 : used[segmentCount - 1];
+        private long next;
+        private long last = -1;
+        private int expected = modCount;
+
+        RecordIterator() {
+            next = seek(0, 0);
+        }
+
+        private long seek(int s, int offset) {
+            for (; s < endSegment; s++, offset = 0) {
+                int end = s == endSegment - 1 ? endOffset : used[s];
+                ByteBuffer segment = segments[s];
+                for (; offset < end; offset += recordSize(segment, offset)) {
+                    if (segment.getInt(offset) == LIVE) {
+                        return ((long) s << SEGMENT_BITS) | offset;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = seek((int) (last >>> SEGMENT_BITS), offset(last) + recordSize(segment(last), offset(last)));
+
+            final K key = key(last);
+            return new SimpleEntry<K, V>(key, value(last)) {
+                @Override
+                public V setValue(V value) {
+                    V old = super.setValue(value);
+                    put(key, value, false);
+                    return old;
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeRecord(last);
+            last = -1;
+            expected = modCount;
+        }
+    }
+}
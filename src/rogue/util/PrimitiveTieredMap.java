@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * The part of IntObjTieredMap and LongObjTieredMap which does not depend on
+ * the type of their keys: the family itself, the values of the flat table
+ * every map keeps its data in, and the walks over the family. Each subclass
+ * keeps the keys of its table in an array of its own type and implements the
+ * key methods over it.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <M> the type of the subclass, which every map of a family is
+ * @param <V> the type of object to store under specific keys
+ */
+abstract class PrimitiveTieredMap<M extends PrimitiveTieredMap<M, V>, V> {
+
+    static final int MIN_CAPACITY = 8;
+
+    // REFERENCE TO PARENT
+    M parent;
+
+    // DATA STORAGE, WHERE A NULL VALUE MARKS AN EMPTY SLOT. THE KEYS ARE KEPT
+    // BY THE SUBCLASS IN THE SAME SLOTS
+    Object[] values;
+    int size;
+
+    // A LIST OF ALL THE CHILDREN
+    final ArrayList<M> children = new ArrayList<>();
+
+    /**
+     * Creates a map holding a table of values
+     *
+     * @param values the values of the table, null in every empty slot
+     * @param size the number of values in the table
+     */
+    PrimitiveTieredMap(Object[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    // CREATION METHODS
+    // - child
+    // - sibling
+    // - getParent
+    // - getRoot
+    // - getChildren
+    /**
+     * Method to create a child map - a new map with this as its parent.
+     *
+     * @return a new empty map of the same type as this map with this as its
+     * parent
+     */
+    public M child() {
+        M map = newMap();
+        map.parent = self();
+        children.add(map);
+        return map;
+    }
+
+    /**
+     * Method to create a sibling map - a new map which shares the same parent
+     * map as this map. As such, the parent map will contain data of both this
+     * map and its sibling
+     *
+     * @return a new empty map of the same type as this map with the same
+     * parent as this one
+     * @throws UnsupportedOperationException when this has no parent
+     */
+    public M sibling() {
+        if (parent == null) {
+            throw new UnsupportedOperationException("May not create sibling of root map");
+        }
+        return parent.child();
+    }
+
+    /**
+     * Method to retrieve the parent of this map
+     *
+     * @return the parent map of this instance, which may be null in the case of
+     * a root map
+     */
+    public M getParent() {
+        return parent;
+    }
+
+    /**
+     * Method to retrieve the root map of the family this map belongs to. This
+     * is the highest order map in the family which contains the entirety of the
+     * data in the family
+     *
+     * @return a map of the same type as this one of generation 0
+     */
+    public M getRoot() {
+        M map = self();
+        while (map.parent != null) {
+            map = map.parent;
+        }
+        return map;
+    }
+
+    /**
+     * Allows access to all the children belonging to this particular instance
+     *
+     * @return a read-only Collection of all the children
+     */
+    public java.util.Collection<M> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    // DATA METHODS
+    // - isRoot
+    // - isLeaf
+    // - getNumChildren
+    // - getGeneration
+    /**
+     * Checks if this map is a root map
+     *
+     * @return true when this has no parent
+     */
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    /**
+     * Checks if this map is a leaf node in the entirety of the tree
+     *
+     * @return true if this map has no children
+     */
+    public boolean isLeaf() {
+        return children.isEmpty();
+    }
+
+    /**
+     * Method to check the number of children this map has
+     *
+     * @return the number of depending children
+     */
+    public int getNumChildren() {
+        return children.size();
+    }
+
+    /**
+     * Method to check a map's generation in the family tree. In other words,
+     * the distance between this map and the root
+     *
+     * @return the number of parents and grandparents this object has
+     */
+    public int getGeneration() {
+        int generation = 0;
+        for (M map = parent; map != null; map = map.parent) {
+            generation++;
+        }
+        return generation;
+    }
+
+    // MAP METHODS
+    // - clear
+    // - containsValue
+    // - isEmpty
+    // - size
+    // - toString
+    /**
+     * Removes every entry from this map only, leaving its children untouched
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Checks if this map holds a value under any key. This takes time
+     * proportional to the capacity of this map
+     *
+     * @param value the value to look for
+     * @return true if the value is stored under some key in this map
+     */
+    public boolean containsValue(Object value) {
+        for (Object stored : values) {
+            if (stored != null && stored.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if this map holds no entries
+     *
+     * @return true if this map is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Method to check the number of entries in this map
+     *
+     * @return the number of keys this map holds
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                if (s.length() > 1) {
+                    s.append(", ");
+                }
+                appendKey(s, i);
+                s.append('=').append(values[i]);
+            }
+        }
+        return s.append('}').toString();
+    }
+
+    // CUSTOM METHODS
+    // - detach
+    // - containsValueInFamily
+    /**
+     * Method which detaches this node from the family to become the head of its
+     * own family
+     *
+     * @return the former parent of this instance
+     */
+    public M detach() {
+        M oldParent = parent;
+        for (Iterator<M> it = parent.children.iterator(); it.hasNext();) {
+            if (it.next() == this) {
+                it.remove();
+                break;
+            }
+        }
+        parent = null;
+        return oldParent;
+    }
+
+    /**
+     * Checks if a given value is stored anywhere within the entirety of the
+     * upper hierarchy. This does not however guarantee that the value exists in
+     * this particular instance.
+     *
+     * @param value the value to check if it exists
+     * @return true if the value is stored in the entirety of the data structure
+     */
+    public boolean containsValueInFamily(V value) {
+        return getRoot().containsValue(value);
+    }
+
+    // KEY METHODS, IMPLEMENTED BY THE SUBCLASS OVER ITS KEYS
+    // A NEW EMPTY ROOT MAP OF THE SAME TYPE
+    abstract M newMap();
+
+    // APPENDS THE KEY IN A SLOT HOLDING A VALUE
+    abstract void appendKey(StringBuilder s, int slot);
+
+    // INTERNAL METHODS
+    @SuppressWarnings("unchecked")
+    final M self() {
+        return (M) this;
+    }
+
+    // THIS MAP AND EVERY MAP BELOW IT, EVERY PARENT BEFORE ITS CHILDREN AND
+    // SIBLINGS IN ORDER
+    final List<M> subtree() {
+        List<M> maps = new ArrayList<>();
+        maps.add(self());
+        for (int i = 0; i < maps.size(); i++) {
+            maps.addAll(maps.get(i).children);
+        }
+        return maps;
+    }
+
+    // EVERY MAP ON ITS OWN LINE, INDENTED ONE SPACE LESS THAN ITS GENERATION
+    // BELOW THE HEAD
+    static String plot(PrimitiveTieredMap<?, ?> map) {
+        StringBuilder graph = new StringBuilder();
+        Deque<PrimitiveTieredMap<?, ?>> maps = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        maps.push(map);
+        depths.push(0);
+        while (!maps.isEmpty()) {
+            PrimitiveTieredMap<?, ?> current = maps.pop();
+            int depth = depths.pop();
+            if (depth > 0) {
+                graph.append('\n');
+                for (int i = 1; i < depth; i++) {
+                    graph.append(' ');
+                }
+            }
+            graph.append(current);
+
+            List<? extends PrimitiveTieredMap<?, ?>> children = current.children;
+            for (ListIterator<? extends PrimitiveTieredMap<?, ?>> it = children.listIterator(children.size()); it.hasPrevious();) {
+                maps.push(it.previous());
+                depths.push(depth + 1);
+            }
+        }
+        return graph.toString();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts objects to and from bytes, for maps which keep their entries
+ * outside of the Java heap. Every implementation must write equal objects as
+ * equal bytes, since the bytes are compared in place of the objects
+ * themselves.
+ *
+ * All positions are absolute, so the position and limit of the buffers are
+ * neither used nor changed.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <T> the type of object to convert
+ */
+public interface Serializer<T> {
+
+    /**
+     * Strings, as two bytes per character
+     */
+    Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public int sizeOf(String value) {
+            return value.length() * 2;
+        }
+
+        @Override
+        public void write(String value, ByteBuffer buffer, int offset) {
+            for (int i = 0; i < value.length(); i++) {
+                buffer.putChar(offset + i * 2, value.charAt(i));
+            }
+        }
+
+        @Override
+        public String read(ByteBuffer buffer, int offset, int length) {
+            char[] chars = new char[length / 2];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = buffer.getChar(offset + i * 2);
+            }
+            return new String(chars);
+        }
+    };
+
+    /**
+     * Integers, as four bytes
+     */
+    Serializer<Integer> INTEGER = new Serializer<Integer>() {
+        @Override
+        public int sizeOf(Integer value) {
+            return 4;
+        }
+
+        @Override
+        public void write(Integer value, ByteBuffer buffer, int offset) {
+            buffer.putInt(offset, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int offset, int length) {
+            return buffer.getInt(offset);
+        }
+    };
+
+    /**
+     * Longs, as eight bytes
+     */
+    Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public int sizeOf(Long value) {
+            return 8;
+        }
+
+        @Override
+        public void write(Long value, ByteBuffer buffer, int offset) {
+            buffer.putLong(offset, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int offset, int length) {
+            return buffer.getLong(offset);
+        }
+    };
+
+    /**
+     * Calculates how many bytes an object takes
+     *
+     * @param value the object to measure
+     * @return the number of bytes write puts into a buffer for it
+     */
+    int sizeOf(T value);
+
+    /**
+     * Writes an object into a buffer, which is known to have room for it
+     *
+     * @param value the object to write
+     * @param buffer the buffer to write into
+     * @param offset the position of the first byte to write
+     */
+    void write(T value, ByteBuffer buffer, int offset);
+
+    /**
+     * Reads an object back from a buffer
+     *
+     * @param buffer the buffer to read from
+     * @param offset the position of the first byte of the object
+     * @param length the number of bytes sizeOf returned for the object
+     * @return a new object equal to the one written
+     */
+    T read(ByteBuffer buffer, int offset, int length);
+}
@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Factory for the maps which hold the data of every generation of a TieredMap
+ * family. A family asks its storage for a new map whenever it creates a child
+ * or sibling, and for a copy whenever it clones a map or copies one after a
+ * snapshot, so that a single family may for example keep a large presized
+ * root and small leaves without any change to TieredMap itself.
+ *
+ * Implementations may return any mutable map, and must return a new one on
+ * every call.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+public abstract class TierStorage<K, V> {
+
+    // SHARED BY EVERY FAMILY WHICH DOES NOT ASK FOR ANYTHING ELSE
+    private static final TierStorage<?, ?> DEFAULT = hashed();
+
+    /**
+     * Creates an empty map for a map of the family
+     *
+     * @param generation the generation of the map the storage is for, where
+     * the root is generation 0
+     * @return a new empty map
+     */
+    public abstract Map<K, V> create(int generation);
+
+    /**
+     * Creates a map holding the same entries as another map created by this
+     * storage. Storage which can copy faster than by putting every entry should
+     * override this.
+     *
+     * @param source the map to copy
+     * @param generation the generation of the map the copy is for
+     * @return a new map with the same entries as the source
+     */
+    public Map<K, V> copy(Map<K, V> source, int generation) {
+        Map<K, V> map = create(generation);
+        map.putAll(source);
+        return map;
+    }
+
+    // STATIC METHODS
+    // - getDefault
+    // - hashed (2)
+    // - linked
+    // - sorted
+    // - concurrent
+    // - shared
+    // - adaptive
+    // - offHeap (2)
+    // - valueIndexed
+    /**
+     * Retrieves the storage used by families created without one
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @return hashed storage without any capacity hints
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> TierStorage<K, V> getDefault() {
+        return (TierStorage<K, V>) DEFAULT;
+    }
+
+    /**
+     * Storage which keeps every generation in a HashMap, as a family does by
+     * default
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @return storage of default-sized hash maps
+     */
+    public static <K, V> TierStorage<K, V> hashed() {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new HashMap<>();
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps every generation in a HashMap presized for a given
+     * number of entries. The first capacity is used for the root, the second
+     * for its children and so on, with the last capacity used for every
+     * generation beyond.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param capacities the expected number of entries of each generation
+     * @return storage of presized hash maps
+     * @throws IllegalArgumentException when no capacity is given
+     */
+    public static <K, V> TierStorage<K, V> hashed(final int... capacities) {
+        checkCapacities(capacities);
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new HashMap<>(tableSize(capacities, generation));
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps every generation in a LinkedHashMap, so that every
+     * map iterates over its entries in the order they were first put in it.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param capacities the expected number of entries of each generation, as
+     * for hashed storage
+     * @return storage of insertion-ordered maps
+     * @throws IllegalArgumentException when no capacity is given
+     */
+    public static <K, V> TierStorage<K, V> linked(final int... capacities) {
+        checkCapacities(capacities);
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new LinkedHashMap<>(tableSize(capacities, generation));
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps every generation in a TreeMap, so that every map
+     * iterates over its entries in key order
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param comparator the order of the keys, or null for their natural order
+     * @return storage of sorted maps
+     */
+    public static <K, V> TierStorage<K, V> sorted(final Comparator<? super K> comparator) {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new TreeMap<>(comparator);
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps every generation in a ConcurrentHashMap, so that a
+     * map may be read by other threads while it is written. This does not make
+     * the family as a whole safe for use by several writing threads, for which
+     * ConcurrentTieredMap should be used instead. Neither keys nor values may
+     * be null.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param capacities the expected number of entries of each generation, as
+     * for hashed storage
+     * @return storage of concurrent maps
+     * @throws IllegalArgumentException when no capacity is given
+     */
+    public static <K, V> TierStorage<K, V> concurrent(final int... capacities) {
+        checkCapacities(capacities);
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new ConcurrentHashMap<>(tableSize(capacities, generation));
+            }
+        };
+    }
+
+    /**
+     * Storage in which every entry is created once and then shared by every
+     * map it propagates to, as described by TieredMap.withSharedStorage
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @return storage of shared entry tables
+     */
+    public static <K, V> TierStorage<K, V> shared() {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new EntryTable<>();
+            }
+
+            @Override
+            public Map<K, V> copy(Map<K, V> source, int generation) {
+                if (source instanceof EntryTable) {
+                    return new EntryTable<>((EntryTable<K, V>) source);
+                }
+                return super.copy(source, generation);
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps every map of up to eight entries in a single flat
+     * array searched by a linear scan, only switching to a hash table past
+     * that and back again once the map shrinks to half of it. This suits
+     * families whose many leaves each hold only a few entries.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @return storage of adaptive tables
+     */
+    public static <K, V> TierStorage<K, V> adaptive() {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return new AdaptiveTable<>();
+            }
+
+            @Override
+            public Map<K, V> copy(Map<K, V> source, int generation) {
+                if (source instanceof AdaptiveTable) {
+                    return new AdaptiveTable<>((AdaptiveTable<K, V>) source);
+                }
+                return super.copy(source, generation);
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps the root of a family outside of the Java heap, as
+     * described by OffHeapMap, and every other generation in a HashMap. Values
+     * read from the root are new objects equal to those put, and neither keys
+     * nor values may be null.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @return storage with an off-heap root
+     */
+    public static <K, V> TierStorage<K, V> offHeap(Serializer<K> keys, Serializer<V> values) {
+        return offHeap(keys, values, TierStorage.<K, V>hashed());
+    }
+
+    /**
+     * Storage which keeps the root of a family outside of the Java heap, and
+     * every other generation in maps of another storage
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param keys the serializer of the keys
+     * @param values the serializer of the values
+     * @param tiers the storage of every generation but the root
+     * @return storage with an off-heap root
+     */
+    public static <K, V> TierStorage<K, V> offHeap(final Serializer<K> keys, final Serializer<V> values, final TierStorage<K, V> tiers) {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                return generation == 0 ? new OffHeapMap<>(keys, values) : tiers.create(generation);
+            }
+
+            @Override
+            public Map<K, V> copy(Map<K, V> source, int generation) {
+                if (source instanceof OffHeapMap) {
+                    return new OffHeapMap<>((OffHeapMap<K, V>) source);
+                }
+                return generation == 0 ? super.copy(source, generation) : tiers.copy(source, generation);
+            }
+        };
+    }
+
+    /**
+     * Storage which keeps the root of a family in a map of another storage,
+     * and also maps every value of the root back to the keys it is held
+     * under. Checking whether the root holds a value then takes constant time,
+     * as does containsValueInFamily, and containsValue on any other map of the
+     * family only looks at the keys the root holds the value under. This costs
+     * an extra hash map entry per distinct value of the root.
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param storage the storage of the maps which hold the entries
+     * @return storage with a value-indexed root
+     */
+    public static <K, V> TierStorage<K, V> valueIndexed(final TierStorage<K, V> storage) {
+        return new TierStorage<K, V>() {
+            @Override
+            public Map<K, V> create(int generation) {
+                Map<K, V> map = storage.create(generation);
+                return generation == 0 ? new ValueIndexedMap<>(map) : map;
+            }
+
+            @Override
+            public Map<K, V> copy(Map<K, V> source, int generation) {
+                if (source instanceof ValueIndexedMap) {
+                    return new ValueIndexedMap<>(storage.copy(((ValueIndexedMap<K, V>) source).getIndexed(), generation));
+                }
+                Map<K, V> map = storage.copy(source, generation);
+                return generation == 0 ? new ValueIndexedMap<>(map) : map;
+            }
+        };
+    }
+
+    // INTERNAL HELPERS
+    private static void checkCapacities(int[] capacities) {
+        if (capacities.length == 0) {
+            throw new IllegalArgumentException("At least one capacity is required");
+        }
+    }
+
+    // THE TABLE SIZE WHICH HOLDS THE EXPECTED ENTRIES WITHOUT A RESIZE
+    private static int tableSize(int[] capacities, int generation) {
+        int expected = capacities[Math.min(generation, capacities.length - 1)];
+        return Math.max(2, (int) Math.min(1 << 30, expected * 4L / 3 + 1));
+    }
+}
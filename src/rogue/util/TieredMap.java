@@ -23,9 +23,30 @@
  */
 package rogue.util;
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Data structure for a Tiered Map - that is a map structure which uses
@@ -40,23 +61,109 @@ import java.util.Map;
  * benefit from global reference maps. For example, a list of IRC users on
  * different channels could all be children of a parent server-wide map
  *
+ * A family is meant for use by one thread at a time. This includes changes to
+ * its topology: child, sibling and detach add to and remove from a plain list
+ * of children which every cascade walks, so they must not run at the same
+ * time as each other or as any other operation on the family. Families whose
+ * maps are created and detached from many threads at once should use
+ * ConcurrentTieredMap, which keeps its children in a concurrent registry.
+ * Snapshots are the exception, as they never change once taken.
+ *
  * @author Rogue <Alice Q.>
  * @param <K> the type of object to use as a key
  * @param <V> the type of object to store under specific keys
  */
 public class TieredMap<K, V> implements Map<K, V> {
 
+    // NUMBER OF CHILDREN ABOVE WHICH A PARALLEL REMOVE SPLITS THE WORK
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    // NUMBER OF QUEUED KEYS AT WHICH A WRITE-BEHIND FAMILY FLUSHES ITSELF
+    private static final int WRITE_BEHIND_LIMIT = 4096;
+
+    // SHARED BY EVERY MAP WHICH HAS NEVER HELD ANY DATA OR CHILDREN
+    private static final Map<?, ?> EMPTY = Collections.emptyMap();
+    private static final List<?> NO_CHILDREN = Collections.emptyList();
+
     // REFERENCE TO PARENT
     private TieredMap<K, V> parent;
 
+    // THE ROOT OF THE FAMILY AND THE DISTANCE TO IT, UPDATED FOR THE WHOLE
+    // SUBTREE WHENEVER A MAP IS DETACHED
+    private TieredMap<K, V> root;
+    private int generation;
+
     // DATA STORAGE
     private Map<K, V> data;
 
     // A LIST OF ALL THE CHILDREN
-    private LinkedList<TieredMap> children;
+    private List<TieredMap<K, V>> children;
+
+    // TRUE WHEN A SNAPSHOT SHARES THE DATA STORAGE, WHICH MUST THEN BE COPIED
+    // BEFORE IT IS NEXT WRITTEN
+    private boolean shared;
+
+    // TRUE WHEN THIS MAP IS PART OF A SNAPSHOT AND MAY NOT BE MODIFIED
+    private boolean frozen;
+
+    // TRUE ONCE A KEY WAS CLEARED OR REMOVED FROM THIS MAP ALONE WHILE IT HAD
+    // CHILDREN, WHICH MAY THEN STILL HOLD KEYS THIS MAP LACKS
+    private boolean loose;
+
+    // TRUE FOR A CLONE, WHICH POINTS TO ITS PARENT WITHOUT BEING ONE OF ITS
+    // CHILDREN, SO THAT NOTHING ABOVE IT EVER REACHES IT OR ITS CHILDREN
+    private boolean unlisted;
+
+    // THE KEYS WHICH SOME MAP OF THE FAMILY MAY HOLD WHILE THE ROOT LACKS THEM,
+    // OR HOLD UNDER ANOTHER VALUE THAN THE ROOT, SO THAT THE VALUE INDEX OF THE
+    // ROOT DOES NOT TELL WHICH VALUES THE OTHER MAPS HOLD UNDER THEM. ONLY KEPT
+    // ON THE ROOT, AND ONLY CREATED ONCE A KEY DIVERGES. A KEY ONLY LEAVES IT
+    // ONCE THE ROOT REMOVES IT FROM THE WHOLE FAMILY
+    private Set<Object> divergent;
+
+    // FACTORY FOR THE DATA STORAGE OF EVERY MAP IN THE FAMILY
+    private TierStorage<K, V> storage;
+
+    // WRITES WAITING TO REACH THE ANCESTORS OF THEIR ORIGIN, ONLY SET ON THE
+    // ROOT OF A WRITE-BEHIND FAMILY
+    private Map<K, Pending<K, V>> pending;
+
+    // EVERY KEY OF THE FAMILY MAPPED TO THE MAPS HOLDING IT, SHARED BY EVERY
+    // MAP OF A KEY-INDEXED FAMILY
+    private Map<Object, Set<TieredMap<K, V>>> keyIndex;
+
+    // EVERY KEY HELD BELOW THIS MAP WHICH THIS MAP LACKS ITSELF, COUNTED ONCE
+    // PER CHILD HOLDING IT ANYWHERE FROM THE CHILD DOWN, ONLY SET IN A
+    // SUMMARIZED FAMILY
+    private Map<Object, Integer> summary;
+
+    // THE STAMP OF THE LAST CHANGE TO THE ENTRIES OF THIS MAP, AND OF THE LAST
+    // CHANGE ANYWHERE FROM THIS MAP DOWN
+    private long version;
+    private long subtreeVersion;
+
+    // THE STAMP OF CHANGES MADE RIGHT NOW, ONLY USED ON THE ROOT. IT ONLY
+    // MOVES ON ONCE A VERSION WITH THE CURRENT STAMP IS READ, SO THAT A BATCH
+    // OF CHANGES STAMPS EVERY ANCESTOR ONLY ONCE
+    private long clock = 1;
+
+    // RECORDS EVERY CHANGE MADE TO THE FAMILY, ONLY SET ON THE ROOT OF A
+    // LOGGED FAMILY
+    private FamilyLog<K, V> log;
+
+    // THE CLONES OF MAPS OF THE FAMILY, WHICH NO PARENT LISTS AS A CHILD BUT
+    // WHOSE ROOT AND GENERATION A DETACH STILL HAS TO UPDATE. ONLY SET ON THE
+    // ROOT ONCE A MAP BELOW IT IS CLONED
+    private List<WeakReference<TieredMap<K, V>>> clones;
+
+    // THE STATE OF THIS MAP AND EVERY MAP BELOW IT AS THE LAST SNAPSHOT TOOK
+    // IT, WHICH THE NEXT SNAPSHOT REUSES UNLESS THE SUBTREE CHANGED SINCE.
+    // ONLY HELD FOR AS LONG AS SOME SNAPSHOT STILL USES IT
+    private WeakReference<Frozen<K, V>> lastFrozen;
 
     // CREATION METHODS
-    // - constructor (2)
+    // - constructor (4)
+    // - withSharedStorage
     // - child
     // - sibling
     // - getParent
@@ -69,9 +176,18 @@ public class TieredMap<K, V> implements Map<K, V> {
      * children
      */
     public TieredMap() {
-        parent = null;
-        children = new LinkedList();
-        data = new HashMap();
+        this(TierStorage.<K, V>getDefault());
+    }
+
+    /**
+     * Constructor which creates a new root map for a family keeping the data
+     * of each generation in the maps created by a given storage. Every map
+     * later created from this family uses the same storage.
+     *
+     * @param storage the factory for the storage of each generation
+     */
+    public TieredMap(TierStorage<K, V> storage) {
+        this(null, TieredMap.<K, V>empty(), storage);
     }
 
     /**
@@ -83,8 +199,10 @@ public class TieredMap<K, V> implements Map<K, V> {
      */
     public TieredMap(TieredMap<K, V> source) {
         parent = null;
-        children = new LinkedList();
-        data = new HashMap(source.data);
+        root = this;
+        children = noChildren();
+        storage = source.storage;
+        data = storage.copy(source.data, 0);
     }
 
     /**
@@ -96,20 +214,59 @@ public class TieredMap<K, V> implements Map<K, V> {
      */
     public TieredMap(Map<K, V> source) {
         parent = null;
-        children = new LinkedList();
-        data = new HashMap(source);
+        root = this;
+        children = noChildren();
+        storage = TierStorage.getDefault();
+        data = new HashMap<>(source);
+    }
+
+    // INTERNAL CONSTRUCTOR
+    private TieredMap(TieredMap<K, V> parent, Map<K, V> data, TierStorage<K, V> storage) {
+        this.parent = parent;
+        this.root = parent == null ? this : parent.root;
+        this.generation = parent == null ? 0 : parent.generation + 1;
+        this.children = noChildren();
+        this.data = data;
+        this.storage = storage;
+        this.keyIndex = parent == null ? null : parent.keyIndex;
+        this.summary = parent == null || parent.summary == null ? null : new HashMap<Object, Integer>(0);
+    }
+
+    /**
+     * Creates a new root map whose family stores every entry only once, no
+     * matter how many generations it propagates through. Where every map of a
+     * regular family holds its own copy of each of its entries, the maps of
+     * this family all point to the single entry created by the put, so that
+     * every generation below the root only costs a table slot per entry. This
+     * relies on rule 2, and a value replaced in a map is only replaced in the
+     * maps the new value is put in, the same as in a regular family. This is
+     * the same as creating a map with TierStorage.shared().
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @return a new empty root map with shared entry storage
+     */
+    public static <K, V> TieredMap<K, V> withSharedStorage() {
+        return new TieredMap<>(TierStorage.<K, V>shared());
     }
 
     /**
      * Method to create a child map - a new TieredMap with this as its parent.
+     * The storage of the new map is only created once something is put in it,
+     * so that empty maps take very little memory. Like every other change to
+     * the family, this may not run concurrently with any other operation on it.
      *
      * @return a new empty TieredMap of the same type as this map with this as
      * its parent
      */
     public TieredMap<K, V> child() {
-        TieredMap<K, V> map = new TieredMap();
-        map.parent = this;
-        children.add(map);
+        checkLive();
+        TieredMap<K, V> map = new TieredMap<>(this, TieredMap.<K, V>empty(), storage);
+        addChild(map);
+        map.touch();
+        if (root.log != null) {
+            root.log.child(this, map);
+        }
         return map;
     }
 
@@ -123,13 +280,17 @@ public class TieredMap<K, V> implements Map<K, V> {
      * @throws UnsupportedOperationException when this has no parent
      */
     public TieredMap<K, V> sibling() {
+        checkLive();
         if (parent == null) {
             throw new UnsupportedOperationException("May not create sibling of root map");
         }
 
-        TieredMap<K, V> map = new TieredMap();
-        map.parent = parent;
-        parent.children.add(map);
+        TieredMap<K, V> map = new TieredMap<>(parent, TieredMap.<K, V>empty(), storage);
+        parent.addChild(map);
+        map.touch();
+        if (root.log != null) {
+            root.log.child(parent, map);
+        }
 
         return map;
     }
@@ -152,31 +313,34 @@ public class TieredMap<K, V> implements Map<K, V> {
      * @return a TieredMap of the same type as this one of generation 0
      */
     public TieredMap<K, V> getRoot() {
-        if (parent == null) {
-            return this;
-        } else {
-            return parent.getRoot();
-        }
+        return root;
     }
 
     /**
      * Method to create a new root map with no reference this map, initialized
-     * with a copy of the data contained in the map
+     * with a copy of the data contained in the map. The new family uses the
+     * same storage as this one
      *
      * @return a new TieredMap of the same type as this one with a copy of the
      * data contained in this one
      */
     public TieredMap<K, V> getNewRoot() {
-        return new TieredMap(this);
+        return new TieredMap<>(this);
     }
 
     /**
-     * Allows access to all the children belonging to this particular instance
+     * Allows access to all the children belonging to this particular instance.
+     * The returned collection is a read-only view, as adding or removing a
+     * child through it would bypass child and detach: children are only ever
+     * added with child or sibling and removed with detach.
      *
-     * @return a Collection of all the TieredMap children
+     * @return a read-only Collection of all the TieredMap children
      */
+    @SuppressWarnings({"rawtypes", "unchecked"})
     public java.util.Collection<TieredMap> getChildren() {
-        return children;
+        // THE RAW ELEMENT TYPE IS KEPT FOR CALLERS WRITTEN AGAINST IT
+        List raw = children;
+        return Collections.unmodifiableList(raw);
     }
 
     // DATA METHODS
@@ -218,11 +382,7 @@ public class TieredMap<K, V> implements Map<K, V> {
      * @return the number of parents and grandparents this object has
      */
     public int getGeneration() {
-        if (parent == null) {
-            return 0;
-        } else {
-            return 1 + parent.getGeneration();
-        }
+        return generation;
     }
 
     // REDIRECTED OVERWRITTEN METHODS METHODS
@@ -238,7 +398,27 @@ public class TieredMap<K, V> implements Map<K, V> {
     // - values
     @Override
     public void clear() {
-        data.clear();
+        checkLive();
+        // A QUEUED WRITE WOULD OTHERWISE PUT BACK WHAT IS CLEARED HERE
+        flush();
+        if (!data.isEmpty()) {
+            if (summary != null) {
+                removedAll();
+            } else if (keyIndex != null) {
+                for (K key : data.keySet()) {
+                    removed(key);
+                }
+            }
+            if (!children.isEmpty()) {
+                for (K key : data.keySet()) {
+                    loosen(key);
+                }
+            }
+            writable().clear();
+            if (root.log != null) {
+                root.log.clear(this);
+            }
+        }
     }
 
     @Override
@@ -247,15 +427,46 @@ public class TieredMap<K, V> implements Map<K, V> {
         return data.containsKey(key);
     }
 
+    /**
+     * Checks if this map holds a value under any key. When the root of the
+     * family indexes its values, as with TierStorage.valueIndexed, this only
+     * looks at the keys the root holds the value under. That takes every map
+     * to hold the same value as the root under each of its keys, so the keys
+     * under which any map of the family lost keys its children kept, or held
+     * on to a value another map replaced, are also checked one by one until
+     * the root removes them from the whole family. Every entry of this map is
+     * scanned instead when there are more of those keys than entries, and for
+     * clones and the maps below them.
+     *
+     * @param value the value to look for
+     * @return true if this map holds the value
+     */
     @Override
     public boolean containsValue(Object value
     ) {
-        return data.containsValue(value);
+        TieredMap<K, V> root = getRoot();
+        if (root == this || !(root.data instanceof ValueIndexedMap) || (root.pending != null && !root.pending.isEmpty())
+                || root.divergent != null && root.divergent.size() > data.size() || !isListed()) {
+            return data.containsValue(value);
+        }
+        for (K key : ((ValueIndexedMap<K, V>) root.data).keysOf(value)) {
+            if (data.containsKey(key) && Objects.equals(data.get(key), value)) {
+                return true;
+            }
+        }
+        if (root.divergent != null) {
+            for (Object key : root.divergent) {
+                if (data.containsKey(key) && Objects.equals(data.get(key), value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     @Override
     public java.util.Set<Entry<K, V>> entrySet() {
-        return data.entrySet();
+        return new EntryView();
     }
 
     @Override
@@ -276,7 +487,7 @@ public class TieredMap<K, V> implements Map<K, V> {
 
     @Override
     public java.util.Set<K> keySet() {
-        return data.keySet();
+        return new KeyView();
     }
 
     @Override
@@ -286,7 +497,7 @@ public class TieredMap<K, V> implements Map<K, V> {
 
     @Override
     public java.util.Collection<V> values() {
-        return data.values();
+        return new ValueView();
     }
 
     // CUSTOM OVERRIDEN MethoDS
@@ -294,21 +505,35 @@ public class TieredMap<K, V> implements Map<K, V> {
     // - equals (2)
     // - put
     // - putAll
-    // - remove
+    // - remove (3)
     // - toString
     /**
-     * Method which returns a sibling of this map with the same data as this map
+     * Method which returns a sibling of this map with the same data as this map.
+     * The clone is not one of its parent's children, so nothing above it ever
+     * reaches it: a remove from a greater map skips it, tiersContaining never
+     * lists it, neither it nor any map below it is key-indexed, and no
+     * summary above it counts its keys. In a write-behind family the family is
+     * flushed first, so that the clone starts with every write made below
+     * this map.
      *
      * @return a new TieredMap of the same type ass this one sharing the same
      * initial data and parent
      */
     @Override
     public TieredMap<K, V> clone() {
-        TieredMap<K, V> map = new TieredMap();
-
-        map.data = new HashMap(data);
-        map.parent = this.parent;
-
+        // NOTHING QUEUED EVER REACHES THE CLONE LATER
+        flush();
+        TieredMap<K, V> map = new TieredMap<>(parent, storage.copy(data, getGeneration()), storage);
+        // NOTHING ABOVE THE CLONE REACHES IT, SO IT STAYS OUT OF THE INDEX
+        // AND OF THE SUMMARIES OF ITS ANCESTORS
+        map.unlisted = true;
+        map.keyIndex = null;
+        if (parent != null) {
+            root.addClone(map);
+        }
+        if (parent != null && root.log != null) {
+            root.log.clone(this, map);
+        }
         return map;
     }
 
@@ -329,20 +554,46 @@ public class TieredMap<K, V> implements Map<K, V> {
 
     /**
      * Method to put a value in this map as well as all greater maps in the
-     * hierarchy
+     * hierarchy. In a write-behind family only this map is written right away
+     * and the greater maps are updated on the next flush
      *
      * @param key the object to use as a key for storage
      * @param value the value to store
-     * @return the root value being replaced, or null if none
+     * @return the root value being replaced, or null if none. In a write-behind
+     * family this is the value being replaced in this map instead
      */
     @Override
     public V put(K key, V value) {
-        if (parent == null) {
-            return data.put(key, value);
-        } else {
-            data.put(key, value);
-            return parent.put(key, value);  // RECURSION!
+        checkLive();
+        TieredMap<K, V> root = getRoot();
+        if (root.pending == null) {
+            V previous = putThrough(key, value, null);
+            if (root.log != null) {
+                root.log.put(this, key, value);
+            }
+            return previous;
+        }
+
+        root.settle(key, this);
+        if (!children.isEmpty()) {
+            replacing(key, value);
+        }
+        V previous = store(key, value);
+        if (root.log != null) {
+            root.log.put(this, key, value);
         }
+        if (parent != null) {
+            Pending<K, V> write = root.pending.get(key);
+            if (write == null) {
+                root.pending.put(key, new Pending<>(this, key, value));
+                if (root.pending.size() >= WRITE_BEHIND_LIMIT) {
+                    root.flush();
+                }
+            } else {
+                write.value = value;
+            }
+        }
+        return previous;
     }
 
     /**
@@ -354,25 +605,100 @@ public class TieredMap<K, V> implements Map<K, V> {
      */
     @Override
     public void putAll(Map<? extends K, ? extends V> map) {
-        data.putAll(map);
-        if (parent != null) {
-            parent.putAll(map);
+        checkLive();
+        if (getRoot().pending != null) {
+            for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        putAllThrough(map, null);
+        if (root.log != null) {
+            root.log.putAll(this, map);
         }
     }
 
     /**
      * Method to remove a value from a given key from this map and all maps
-     * below it
+     * below it. Since every map holds every key of its children, the cascade
+     * skips every child which does not hold the key along with all of its
+     * children, unless the child has had keys cleared or removed through its
+     * views, which do not reach its children
      *
      * @param key the key to remove
      * @return the value previously held at the given key
      */
     @Override
     public V remove(Object key) {
-        for (TieredMap child : children) {
-            child.remove(key);
+        checkLive();
+        getRoot().settle(key, null);
+        V previous = keyIndex != null ? removeIndexed(key) : removeCascade(key, Integer.MAX_VALUE, null);
+        if (parent == null) {
+            converged(key);
+        }
+        if (root.log != null) {
+            root.log.remove(this, key);
+        }
+        return previous;
+    }
+
+    /**
+     * Method to remove a value from a given key from this map and all maps
+     * below it, spreading the walk over the threads of a pool wherever a map
+     * has many children. No other thread may modify the family until this
+     * returns.
+     *
+     * @param key the key to remove
+     * @param pool the pool to run the cascade in
+     * @return the value previously held at the given key
+     */
+    public V remove(Object key, ForkJoinPool pool) {
+        return remove(key, pool, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Method to remove a value from a given key from this map and all maps
+     * below it, spreading the walk over the threads of a pool wherever a map
+     * has more than a given number of children. Narrower parts of the family
+     * are walked serially in whichever thread reaches them. Key-indexed and
+     * summarized families are always walked serially, as every remove updates
+     * state they share. The threads of the pool only ever change the tables of
+     * the maps, and the versions of every map changed are stamped by the
+     * calling thread once the walk is done. No other thread may modify the
+     * family until this returns.
+     *
+     * @param key the key to remove
+     * @param pool the pool to run the cascade in
+     * @param threshold the number of children above which a map's children
+     * are split between threads
+     * @return the value previously held at the given key
+     * @throws IllegalArgumentException when the threshold is below 1
+     */
+    public V remove(Object key, ForkJoinPool pool, int threshold) {
+        checkLive();
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be at least 1: " + threshold);
+        }
+        if (tracked() || children.size() <= threshold && isShallow(threshold)) {
+            return remove(key);
+        }
+
+        getRoot().settle(key, null);
+        V previous = null;
+        if (mayHold(key)) {
+            Queue<TieredMap<K, V>> changed = new ConcurrentLinkedQueue<>();
+            pool.invoke(new RemoveTask<>(new ArrayList<>(children), 0, children.size(), key, threshold, changed));
+            stamp(changed);
+            previous = removeLocal(key);
+        }
+        if (parent == null) {
+            converged(key);
+        }
+        if (root.log != null) {
+            root.log.remove(this, key);
         }
-        return data.remove(key);
+        return previous;
     }
 
     @Override
@@ -385,6 +711,21 @@ public class TieredMap<K, V> implements Map<K, V> {
     // - detach
     // - containsKeyInFamily
     // - containsValueInFamily
+    // - setWriteBehind
+    // - isWriteBehind
+    // - flush
+    // - snapshot
+    // - isSnapshot
+    // - setKeyIndexed
+    // - isKeyIndexed
+    // - tiersContaining
+    // - setSubtreeSummaries
+    // - hasSubtreeSummaries
+    // - subtreeContainsKey
+    // - removeAll (3)
+    // - clearSubtree (2)
+    // - getVersion
+    // - getSubtreeVersion
     /**
      * Inherits a value as a given key from a TieredMap higher up in the
      * hierarchy. Note that this does nothing when used on a root map, and puts
@@ -394,27 +735,68 @@ public class TieredMap<K, V> implements Map<K, V> {
      * @return the inherited value
      */
     public V inherit(K key) {
-        if (parent == null) {
-            return get(key);
-        } else {
-            V value = parent.inherit(key);
-            if (value != null) {
-                data.put(key, value);
+        checkLive();
+        getRoot().settle(key, null);
+        V value = inheritThrough(key);
+        if (value != null && root.log != null) {
+            root.log.inherit(this, key);
+        }
+        return value;
+    }
+
+    // PUTS THE VALUE OF THE ROOT IN EVERY MAP BETWEEN IT AND THIS ONE
+    private V inheritThrough(K key) {
+        V value = root.get(key);
+        if (value != null && parent != null) {
+            TieredMap<K, V>[] lineage = lineage();
+            for (int i = 1; i < lineage.length; i++) {
+                lineage[i].putLocal(key, value);
             }
-            return value;
         }
+        return value;
     }
 
     /**
      * Method which detaches this node from the family to become the head of its
-     * own family
+     * own family. Every map below this one learns its new root and generation
+     * right away, so this takes time proportional to the size of the subtree.
+     * Like every other change to the family, this may not run concurrently
+     * with any other operation on it.
      *
      * @return the former parent of this instance
      */
     public TieredMap<K, V> detach() {
-        TieredMap oldParent = parent;
-        parent.children.remove(this);
+        checkLive();
+        TieredMap<K, V> root = getRoot();
+        if (root.pending != null) {
+            root.flush();
+            pending = new HashMap<>();
+        }
+
+        TieredMap<K, V> oldParent = parent;
+        if (summary != null) {
+            unsummarize();
+        }
+        for (Iterator<TieredMap<K, V>> it = parent.children.iterator(); it.hasNext();) {
+            if (it.next() == this) {   // NOT equals, WHICH COMPARES THE DATA
+                it.remove();
+                break;
+            }
+        }
+        oldParent.touchSubtree();
         parent = null;
+        unlisted = false;
+        reroot();
+        adoptClones(root);
+        divergent = root.divergent == null ? null : new HashSet<>(root.divergent);
+        if (keyIndex != null) {
+            reindex(new HashMap<Object, Set<TieredMap<K, V>>>());
+        }
+        clock = root.clock + 1;
+        touchSubtree();
+        if (root.log != null) {
+            root.log.detach(this);
+        }
         return oldParent;
     }
 
@@ -428,7 +810,8 @@ public class TieredMap<K, V> implements Map<K, V> {
      * the structure
      */
     public boolean containsKeyInFamily(K key) {
-        return getRoot().containsKey(key);
+        TieredMap<K, V> root = getRoot();
+        return root.containsKey(key) || (root.pending != null && root.pending.containsKey(key));
     }
 
     /**
@@ -440,47 +823,1724 @@ public class TieredMap<K, V> implements Map<K, V> {
      * @return true if the value is stored in the entirety of the data structure
      */
     public boolean containsValueInFamily(V value) {
-        return getRoot().containsValue(value);
+        TieredMap<K, V> root = getRoot();
+        root.flush();
+        return root.containsValue(value);
     }
 
-    // STATIC METHODS
-    // - toGraph
     /**
-     * Constructor method which creates a multi-line String representation of
-     * the entire family graph this belongs to
+     * Switches the entire family this map belongs to in or out of write-behind
+     * mode. In write-behind mode a put or putAll only writes to the map it is
+     * called on and queues the update of every greater map, so that greater
+     * maps may briefly lag behind their children. Queued updates are coalesced
+     * by key and applied in batches whenever enough have built up, when flush
+     * is called, and before any remove, clear, removal through the views of a
+     * map, clone, inherit or detach which could observe them.
+     * containsKeyInFamily, containsValueInFamily and inherit always see every
+     * write made before them. Switching the mode off flushes the family.
      *
-     * @param map a map from the family to plot
-     * @return a String representation of the entire structure
+     * @param enabled true to queue upward propagation, false to propagate
+     * every write immediately
      */
-    public static String toGraph(TieredMap map) {
-        TieredMap root = map.getRoot();
-        return toGraph(root, 0);
+    public void setWriteBehind(boolean enabled) {
+        checkLive();
+        TieredMap<K, V> root = getRoot();
+        if (enabled && root.pending == null) {
+            root.pending = new HashMap<>();
+        } else if (!enabled && root.pending != null) {
+            root.flush();
+            root.pending = null;
+        } else {
+            return;
+        }
+        if (root.log != null) {
+            root.log.writeBehind(root, enabled);
+        }
     }
 
     /**
-     * Constructor method which creates a multi-line String representation of
-     * this map and all of its children
+     * Checks if the family this map belongs to is in write-behind mode
      *
-     * @param map a map from the family to plot
-     * @return a String representation of the entire structure with this as its
-     * head
+     * @return true if upward propagation is queued until the next flush
      */
-    public static String toPartialGraph(TieredMap map) {
-        return toGraph(map, 0);
+    public boolean isWriteBehind() {
+        return getRoot().pending != null;
+    }
+
+    /**
+     * Applies every queued write in the family this map belongs to, so that
+     * every map once again contains all the data of its children. This does
+     * nothing outside of write-behind mode.
+     */
+    public void flush() {
+        TieredMap<K, V> root = getRoot();
+        if (root.pending == null || root.pending.isEmpty()) {
+            return;
+        }
+
+        Map<TieredMap<K, V>, Map<K, V>> batches = new IdentityHashMap<>();
+        for (Pending<K, V> write : root.pending.values()) {
+            Map<K, V> batch = batches.get(write.origin);
+            if (batch == null) {
+                batch = new HashMap<>();
+                batches.put(write.origin, batch);
+            }
+            batch.put(write.key, write.value);
+        }
+        root.pending.clear();
+
+        for (Entry<TieredMap<K, V>, Map<K, V>> entry : batches.entrySet()) {
+            TieredMap<K, V> origin = entry.getKey();
+            origin.parent.putAllThrough(entry.getValue(), origin);
+        }
+        if (root.log != null) {
+            root.log.flush(root);
+        }
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the entire family this map belongs to.
+     * The snapshot is a family of its own with the same topology and data as
+     * this family, which never changes afterwards and refuses any attempt to
+     * modify it. It may be handed over to other threads, such as for iteration
+     * or toGraph, while this family keeps being modified.
+     *
+     * No entries are copied while taking the snapshot. Instead every map shares
+     * its storage with the snapshot, and copies it once on the next write after
+     * the snapshot. Consecutive snapshots share the state of every subtree
+     * which did not change in between, and the maps of a snapshot are only
+     * created once they are reached through getChildren, so the cost of a
+     * snapshot is a small object per map changed since the last one, plus a
+     * copy of each map that is later written to.
+     *
+     * @return the root of the snapshot
+     */
+    public TieredMap<K, V> snapshot() {
+        TieredMap<K, V> root = getRoot();
+        if (root.frozen) {
+            return root;
+        }
+
+        root.flush();
+        TieredMap<K, V> snapshot = thaw(root.freeze(), null, storage);
+        snapshot.divergent = root.divergent == null ? null : new HashSet<>(root.divergent);
+        // THE SNAPSHOT READS EVERY VERSION, SO THAT ANY LATER CHANGE MOVES IT
+        snapshot.clock = root.clock;
+        root.clock++;
+        return snapshot;
+    }
+
+    /**
+     * Checks if this map is part of a snapshot
+     *
+     * @return true if this map was created by snapshot and may not be modified
+     */
+    public boolean isSnapshot() {
+        return frozen;
+    }
+
+    /**
+     * Switches the entire family this map belongs to in or out of key-indexed
+     * mode. A key-indexed family keeps every key mapped to the maps which hold
+     * it, so that a remove only visits the maps holding the key instead of
+     * every map below the one it is called on, and tiersContaining does not
+     * need to walk the family. In exchange every put, inherit and remove also
+     * updates the index. This suits wide families in which each key is only
+     * held by a few maps.
+     *
+     * @param enabled true to index the keys of the family, false to drop the
+     * index
+     */
+    public void setKeyIndexed(boolean enabled) {
+        checkLive();
+        TieredMap<K, V> root = getRoot();
+        if (enabled && root.keyIndex == null) {
+            root.reindex(new HashMap<Object, Set<TieredMap<K, V>>>());
+        } else if (!enabled && root.keyIndex != null) {
+            root.reindex(null);
+        } else {
+            return;
+        }
+        if (root.log != null) {
+            root.log.keyIndexed(root, enabled);
+        }
+    }
+
+    /**
+     * Checks if the family this map belongs to is in key-indexed mode
+     *
+     * @return true if the family maps every key to the maps holding it
+     */
+    public boolean isKeyIndexed() {
+        return keyIndex != null;
+    }
+
+    /**
+     * Retrieves every map of the family this map belongs to which holds a
+     * given key. In a write-behind family any queued write of the key is
+     * applied first.
+     *
+     * @param key the key to look for
+     * @return a new set of the maps holding the key, compared by identity
+     */
+    public Set<TieredMap<K, V>> tiersContaining(Object key) {
+        getRoot().settle(key, null);
+        Set<TieredMap<K, V>> tiers = newTierSet();
+        if (keyIndex != null) {
+            Set<TieredMap<K, V>> holders = keyIndex.get(key);
+            if (holders != null) {
+                tiers.addAll(holders);
+            }
+        } else {
+            getRoot().collectHolders(key, tiers);
+        }
+        return tiers;
+    }
+
+    /**
+     * Switches the entire family this map belongs to in or out of summarized
+     * mode. In summarized mode every map also knows the keys held below it
+     * which it lacks itself, such as those cleared or removed through its
+     * views, so that a remove, tiersContaining or subtreeContainsKey can rule
+     * a map and all of its children out from the map alone. Without the
+     * summaries the children of such maps can never be ruled out by their
+     * parent. Each of these keys is counted once per child holding it
+     * somewhere below, so a summary only grows with the keys missing from
+     * its map, and a key new to a map only reaches the summaries of the
+     * greater maps lacking it. Switching the mode on builds every summary
+     * from those of its children in one pass over the family.
+     *
+     * @param enabled true to summarize every subtree of the family, false to
+     * drop the summaries
+     */
+    public void setSubtreeSummaries(boolean enabled) {
+        checkLive();
+        TieredMap<K, V> root = getRoot();
+        if (enabled == (root.summary != null)) {
+            return;
+        }
+        List<TieredMap<K, V>> maps = root.subtree();
+        if (!enabled) {
+            for (TieredMap<K, V> map : maps) {
+                map.summary = null;
+            }
+        } else {
+            // CHILDREN BEFORE THEIR PARENTS
+            for (int i = maps.size() - 1; i >= 0; i--) {
+                maps.get(i).summarize();
+            }
+        }
+        if (root.log != null) {
+            root.log.summarized(root, enabled);
+        }
+    }
+
+    /**
+     * Checks if the family this map belongs to is in summarized mode
+     *
+     * @return true if every map summarizes the keys held from it down
+     */
+    public boolean hasSubtreeSummaries() {
+        return summary != null;
+    }
+
+    /**
+     * Checks if this map or any map below it holds a given key. Every map
+     * holds the keys of its children, so this only looks further than this
+     * map when keys were cleared or removed from it through its views. In a
+     * write-behind family any queued write of the key is applied first.
+     *
+     * @param key the key to look for
+     * @return true if the key is held anywhere from this map down
+     */
+    public boolean subtreeContainsKey(Object key) {
+        getRoot().settle(key, null);
+        if (!mayHold(key)) {
+            return false;
+        }
+        Deque<TieredMap<K, V>> maps = new ArrayDeque<>();
+        maps.push(this);
+        while (!maps.isEmpty()) {
+            TieredMap<K, V> map = maps.pop();
+            if (map.data.containsKey(key)) {
+                return true;
+            }
+            for (TieredMap<K, V> child : map.children) {
+                if (child.mayHold(key)) {
+                    maps.push(child);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every key of a collection from this map and all maps below it,
+     * as remove would for each of them, but in a single walk of the family.
+     * Every map is only visited once for the whole batch, and is handed only
+     * the keys of the batch which its parent found it could hold, so that a
+     * map holding few keys costs no more than those keys no matter how large
+     * the batch is.
+     *
+     * @param keys the keys to remove
+     * @return a new map of the values this map held under the removed keys
+     */
+    public Map<K, V> removeAll(Collection<?> keys) {
+        checkLive();
+        Set<Object> batch = settleAll(keys);
+        Map<K, V> removed = new HashMap<>();
+        if (keyIndex != null) {
+            for (Object key : batch) {
+                if (data.containsKey(key)) {
+                    removed.put(cast(key), data.get(key));
+                }
+                removeIndexed(key);
+            }
+        } else {
+            Set<Object> holdable = holdable(batch);
+            if (!holdable.isEmpty()) {
+                removeBatch(holdable, Integer.MAX_VALUE, removed, null);
+            }
+        }
+        if (parent == null) {
+            for (Object key : batch) {
+                converged(key);
+            }
+        }
+        if (root.log != null) {
+            root.log.removeAll(this, batch);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every key of a collection from this map and all maps below it
+     * in a single walk of the family, spreading the walk over the threads of
+     * a pool wherever a map has many children. No other thread may modify the
+     * family until this returns.
+     *
+     * @param keys the keys to remove
+     * @param pool the pool to run the walk in
+     * @return a new map of the values this map held under the removed keys
+     */
+    public Map<K, V> removeAll(Collection<?> keys, ForkJoinPool pool) {
+        return removeAll(keys, pool, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Removes every key of a collection from this map and all maps below it
+     * in a single walk of the family, spreading the walk over the threads of
+     * a pool wherever a map has more than a given number of children, as
+     * remove does for a single key. Key-indexed and summarized families are
+     * always walked serially. No other thread may modify the family until
+     * this returns.
+     *
+     * @param keys the keys to remove
+     * @param pool the pool to run the walk in
+     * @param threshold the number of children above which a map's children
+     * are split between threads
+     * @return a new map of the values this map held under the removed keys
+     * @throws IllegalArgumentException when the threshold is below 1
+     */
+    public Map<K, V> removeAll(Collection<?> keys, ForkJoinPool pool, int threshold) {
+        checkLive();
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be at least 1: " + threshold);
+        }
+        if (tracked() || children.size() <= threshold && isShallow(threshold)) {
+            return removeAll(keys);
+        }
+
+        Set<Object> batch = settleAll(keys);
+        Set<Object> holdable = holdable(batch);
+        Map<K, V> removed = new HashMap<>();
+        if (!holdable.isEmpty()) {
+            Queue<TieredMap<K, V>> changed = new ConcurrentLinkedQueue<>();
+            pool.invoke(new RemoveAllTask<>(new ArrayList<>(children), 0, children.size(), holdable, threshold, changed));
+            stamp(changed);
+            removeAllLocal(holdable, removed, null);
+        }
+        if (parent == null) {
+            for (Object key : batch) {
+                converged(key);
+            }
+        }
+        if (root.log != null) {
+            root.log.removeAll(this, batch);
+        }
+        return removed;
     }
 
-    // RECURSIVE INTERNAL METHOD
-    private static String toGraph(TieredMap map, int depth) {
-        String s = "" + map.data;
+    /**
+     * Empties this map and every map below it, so that unlike clear the
+     * children of this map never keep keys it no longer holds. Every map
+     * keeps the table which held its entries for reuse where its storage
+     * allows, and maps sharing their table with a snapshot simply let go of
+     * it instead of copying it first.
+     */
+    public void clearSubtree() {
+        clearSubtree(false);
+    }
 
-        for (TieredMap child : (LinkedList<TieredMap>) map.children) {
-            s += "\n";
-            for (int i = 0; i < depth; i++) {
-                s += ' ';
+    /**
+     * Empties this map and every map below it, optionally also removing every
+     * key they held from all of the greater maps. As every map must remain a
+     * subset of its parent, purging the ancestors removes the keys from the
+     * entire family, exactly as removeAll on the root would.
+     *
+     * @param purgeAncestors true to remove the cleared keys from the entire
+     * family rather than only from this map and below
+     */
+    public void clearSubtree(boolean purgeAncestors) {
+        checkLive();
+        flush();
+        List<TieredMap<K, V>> maps = subtree();
+        if (purgeAncestors && parent != null) {
+            Set<Object> keys = new HashSet<>();
+            for (TieredMap<K, V> map : maps) {
+                keys.addAll(map.data.keySet());
             }
-            s += toGraph(child, depth + 1);
+            getRoot().removeAll(keys);
+        } else if (summary != null) {
+            unsummarize();
+        }
+        for (TieredMap<K, V> map : maps) {
+            map.clearLocal();
         }
+        if (parent == null) {
+            divergent = null;
+        }
+        // ONLY THE CLEAR IS RECORDED, AS A PURGE HAS ALREADY BEEN RECORDED AS
+        // THE REMOVAL OF ITS KEYS FROM THE ROOT
+        if (root.log != null) {
+            root.log.clearSubtree(this);
+        }
+    }
+
+    /**
+     * Retrieves the version of the entries of this map. The version grows
+     * whenever an entry of this map is put, replaced or removed, whether
+     * directly or as a change propagates through the family, and when the
+     * map is cleared or created. Two reads returning the same version thus
+     * mean that the entries did not change in between, which makes the
+     * version a cheap way to tell whether anything derived from them is
+     * stale. In a write-behind family a queued write only counts once it
+     * reaches this map. The maps of a snapshot keep the versions they had
+     * when it was taken.
+     *
+     * @return the version of this map
+     */
+    public long getVersion() {
+        return observe(version);
+    }
+
+    /**
+     * Retrieves the version of this map and everything below it, which grows
+     * whenever the version of any of these maps grows, and whenever a map is
+     * created below this one or detached from below it
+     *
+     * @return the version of this map and every map below it
+     */
+    public long getSubtreeVersion() {
+        return observe(subtreeVersion);
+    }
+
+    // PACKAGE METHODS
+    // - adopt (2)
+    // - getData
+    // - isDataShared
+    // - setData
+    // - replaceLocal
+    // - settle
+    // - setLog
+    // - getChildList
+    /**
+     * Creates a new root map around a map of entries which was created by a
+     * given storage and already filled, so that a family can be built without
+     * a put for every entry of every map
+     *
+     * @param <K> the type of object to use as a key
+     * @param <V> the type of object to store under specific keys
+     * @param data the entries of the new map, or null for none
+     * @param storage the storage of the new family
+     * @return the new root map
+     */
+    static <K, V> TieredMap<K, V> adopt(Map<K, V> data, TierStorage<K, V> storage) {
+        return new TieredMap<>(null, data == null ? TieredMap.<K, V>empty() : data, storage);
+    }
 
-        return s;
+    /**
+     * Creates a new child around a map of entries which was created by the
+     * storage of this family and already filled. The entries must be a subset
+     * of those of this map, with the same value under each key, other than
+     * keys since cleared or removed from this map alone.
+     *
+     * @param data the entries of the new map, or null for none
+     * @param lacking the keys of the entries this map lacks, which a remove
+     * from this map or any greater one lacking them too then still has to
+     * look for below it
+     * @return the new child
+     */
+    TieredMap<K, V> adopt(Map<K, V> data, Collection<K> lacking) {
+        checkLive();
+        TieredMap<K, V> map = new TieredMap<>(this, data == null ? TieredMap.<K, V>empty() : data, storage);
+        addChild(map);
+        for (K key : lacking) {
+            for (TieredMap<K, V> above = this; above != null; above = above.parent) {
+                if (!above.data.containsKey(key)) {
+                    above.loose = true;
+                    diverged(key);
+                }
+            }
+        }
+        for (Entry<K, V> entry : map.data.entrySet()) {
+            if (!this.data.containsKey(entry.getKey()) || !Objects.equals(this.data.get(entry.getKey()), entry.getValue())) {
+                diverged(entry.getKey());
+            }
+        }
+        map.touch();
+        if (map.tracked()) {
+            for (K key : map.data.keySet()) {
+                map.added(key);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Retrieves the map holding the entries of this map, which may be shared
+     * with a snapshot and must then not be written
+     *
+     * @return the entries of this map
+     */
+    Map<K, V> getData() {
+        return data;
+    }
+
+    /**
+     * Tells whether a snapshot may still share the map holding the entries of
+     * this map, which may then be read by other threads
+     *
+     * @return true if the entries of this map may be shared
+     */
+    boolean isDataShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the map holding the entries of this map with another one
+     * holding the very same entries, such as a copy of them in other storage
+     *
+     * @param data a map with the same entries as this map
+     */
+    void setData(Map<K, V> data) {
+        checkLive();
+        this.data = data;
+        shared = false;
+        for (TieredMap<K, V> map = this; map != null; map = map.parent) {
+            map.lastFrozen = null;
+        }
+    }
+
+    /**
+     * Replaces the value under a key this map holds in this map alone, as
+     * setValue on an entry of this map does
+     *
+     * @param key a key held by this map
+     * @param value the new value
+     */
+    void replaceLocal(K key, V value) {
+        if (parent != null || !children.isEmpty()) {
+            replacing(key, value);
+        }
+        writable().put(key, value);
+    }
+
+    /**
+     * Applies the queued write of a key in a write-behind family right away,
+     * if there is one
+     *
+     * @param key the key whose queued write to apply
+     */
+    void settle(Object key) {
+        getRoot().settle(key, null);
+    }
+
+    /**
+     * Starts or stops recording every change made to the family this map is
+     * the root of
+     *
+     * @param log the log to record changes in, or null to stop recording
+     */
+    void setLog(FamilyLog<K, V> log) {
+        this.log = log;
+    }
+
+    /**
+     * Allows access to the children of this map with their type, unlike
+     * getChildren
+     *
+     * @return a read-only List of all the children
+     */
+    List<TieredMap<K, V>> getChildList() {
+        return Collections.unmodifiableList(children);
+    }
+
+    // STATIC METHODS
+    // - toGraph
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * the entire family graph this belongs to
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure
+     */
+    public static String toGraph(TieredMap map) {
+        return plot(map.getRoot());
+    }
+
+    /**
+     * Constructor method which creates a multi-line String representation of
+     * this map and all of its children
+     *
+     * @param map a map from the family to plot
+     * @return a String representation of the entire structure with this as its
+     * head
+     */
+    public static String toPartialGraph(TieredMap map) {
+        return plot(map);
+    }
+
+    // PROPAGATION INTERNAL METHODS
+    // PUTS A VALUE IN EVERY GREATER MAP AND THEN THIS ONE, RIGHT AWAY. BELOW
+    // IS THE CHILD OF THIS MAP ALREADY HOLDING THE VALUE, IF ANY
+    private V putThrough(K key, V value, TieredMap<K, V> below) {
+        TieredMap<K, V>[] lineage = lineage();
+        for (int i = 0; i < lineage.length; i++) {
+            if (lineage[i].diverges(i + 1 < lineage.length ? lineage[i + 1] : below)) {
+                lineage[i].replacing(key, value);
+            }
+        }
+        V previous = root.store(key, value);
+        for (int i = 1; i < lineage.length; i++) {
+            lineage[i].putLocal(key, value);
+        }
+        return previous;
+    }
+
+    private void putAllThrough(Map<? extends K, ? extends V> map, TieredMap<K, V> below) {
+        TieredMap<K, V>[] lineage = lineage();
+        for (int i = 0; i < lineage.length; i++) {
+            if (lineage[i].diverges(i + 1 < lineage.length ? lineage[i + 1] : below)) {
+                for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                    lineage[i].replacing(entry.getKey(), entry.getValue());
+                }
+            }
+            lineage[i].putAllLocal(map);
+        }
+    }
+
+    private void putAllLocal(Map<? extends K, ? extends V> map) {
+        if (parent != null && data instanceof EntryTable) {
+            for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                putLocal(entry.getKey(), entry.getValue());
+            }
+        } else if (tracked()) {
+            for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                store(entry.getKey(), entry.getValue());
+            }
+        } else {
+            writable().putAll(map);
+        }
+    }
+
+    // PUTS A VALUE IN THIS MAP ONLY, REUSING THE PARENT'S ENTRY FOR IT IF THE
+    // FAMILY SHARES ITS ENTRIES
+    private void putLocal(K key, V value) {
+        Map<K, V> map = writable();
+        if (parent != null && map instanceof EntryTable && parent.data instanceof EntryTable) {
+            boolean fresh = tracked() && !map.containsKey(key);
+            if (((EntryTable<K, V>) map).link((EntryTable<K, V>) parent.data, key, value)) {
+                if (fresh) {
+                    added(key);
+                }
+                return;
+            }
+        }
+        store(key, value);
+    }
+
+    // PUTS A VALUE IN THIS MAP ONLY, TRACKING ITS KEY IF IT IS NEW HERE
+    private V store(K key, V value) {
+        Map<K, V> map = writable();
+        if (!tracked() || map.containsKey(key)) {
+            return map.put(key, value);
+        }
+        V previous = map.put(key, value);
+        added(key);
+        return previous;
+    }
+
+    // APPLIES THE QUEUED WRITE OF A KEY UNLESS IT CAME FROM THE GIVEN MAP. A
+    // KEY IS ONLY EVER QUEUED BY ONE MAP AT A TIME, SO THAT THE QUEUE CAN BE
+    // APPLIED IN ANY ORDER
+    private void settle(Object key, TieredMap<K, V> origin) {
+        if (pending == null) {
+            return;
+        }
+
+        Pending<K, V> write = pending.get(key);
+        if (write != null && write.origin != origin) {
+            pending.remove(key);
+            write.origin.parent.putThrough(write.key, write.value, write.origin);
+            if (log != null) {
+                log.settle(this, write.key);
+            }
+        }
+    }
+
+    // TRUE WHEN NO CHILD HAS MORE THAN THE GIVEN NUMBER OF CHILDREN ITSELF
+    private boolean isShallow(int threshold) {
+        for (TieredMap<K, V> child : children) {
+            if (child.children.size() > threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // REMOVES A KEY FROM THIS MAP AND BELOW, SPLITTING WIDE MAPS BETWEEN THE
+    // THREADS OF THE POOL WHEN CALLED FROM WITHIN A RUNNING REMOVE TASK, WHICH
+    // COLLECTS THE MAPS IT CHANGED RATHER THAN STAMPING THEM
+    private V removeCascade(Object key, int threshold, Queue<TieredMap<K, V>> changed) {
+        if (children.isEmpty() || !mayHold(key, changed)) {
+            return removeLocal(key, changed);
+        }
+
+        // EVERY MAP ON THE WAY DOWN, WITH THE CHILDREN OF IT LEFT TO WALK
+        Deque<TieredMap<K, V>> maps = new ArrayDeque<>();
+        Deque<Iterator<TieredMap<K, V>>> walks = new ArrayDeque<>();
+        maps.push(this);
+        walks.push(descend(key, threshold, changed));
+        while (true) {
+            Iterator<TieredMap<K, V>> walk = walks.peek();
+            if (walk.hasNext()) {
+                TieredMap<K, V> child = walk.next();
+                if (child.mayHold(key, changed)) {
+                    maps.push(child);
+                    walks.push(child.descend(key, threshold, changed));
+                }
+            } else {
+                walks.pop();
+                V previous = maps.pop().removeLocal(key, changed);
+                if (maps.isEmpty()) {
+                    return previous;
+                }
+            }
+        }
+    }
+
+    // FALSE WHEN NEITHER THIS MAP NOR ANY MAP BELOW IT CAN HOLD THE KEY,
+    // WHICH A SUMMARY TELLS EXACTLY
+    private boolean mayHold(Object key) {
+        return mayHold(key, null);
+    }
+
+    // AS ABOVE, ONLY FORGETTING THAT A LEAF IS LOOSE OUTSIDE OF A REMOVE TASK
+    // AND OF A SNAPSHOT, WHICH OTHER THREADS MAY BE READING
+    private boolean mayHold(Object key, Queue<TieredMap<K, V>> changed) {
+        if (summary != null) {
+            return data.containsKey(key) || summary.containsKey(key);
+        }
+        if (loose && children.isEmpty() && changed == null && !frozen) {
+            loose = false;
+        }
+        return loose || data.containsKey(key);
+    }
+
+    // MARKS THIS MAP AFTER IT LOST A KEY WHICH ITS CHILDREN MAY STILL HOLD
+    private void loosen(Object key) {
+        if (!children.isEmpty()) {
+            loose = true;
+            diverged(key);
+        }
+    }
+
+    // TRUE WHEN A WRITE REPLACING A VALUE IN THIS MAP MAY LEAVE THE FORMER
+    // VALUE IN A CHILD OTHER THAN THE ONE THE WRITE CAME THROUGH
+    private boolean diverges(TieredMap<K, V> through) {
+        return children.size() > 1 || children.size() == 1 && children.get(0) != through;
+    }
+
+    // MARKS A KEY DIVERGENT WHEN THIS MAP IS ABOUT TO REPLACE ITS VALUE WITH
+    // ANOTHER ONE
+    private void replacing(Object key, Object value) {
+        if (data.containsKey(key) && !Objects.equals(data.get(key), value)) {
+            diverged(key);
+        }
+    }
+
+    // RECORDS ON THE ROOT THAT SOME MAP MAY HOLD A KEY UNDER ANOTHER VALUE
+    // THAN THE ROOT, OR WHILE THE ROOT LACKS IT
+    private void diverged(Object key) {
+        TieredMap<K, V> root = getRoot();
+        if (root.divergent == null) {
+            root.divergent = new HashSet<>();
+        }
+        root.divergent.add(key);
+    }
+
+    // FORGETS A DIVERGENT KEY ONCE THIS ROOT REMOVED IT FROM THE WHOLE FAMILY
+    private void converged(Object key) {
+        if (divergent != null) {
+            divergent.remove(key);
+        }
+    }
+
+    // TRUE WHEN THIS MAP AND EVERY MAP ABOVE IT ARE CHILDREN OF THEIR PARENTS,
+    // SO THAT EVERY WRITE FROM ABOVE REACHES THIS MAP
+    private boolean isListed() {
+        for (TieredMap<K, V> map = this; map != null; map = map.parent) {
+            if (map.unlisted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // THE CHILDREN A REMOVE CASCADE STILL HAS TO WALK, AFTER HANDING THOSE OF A
+    // WIDE MAP TO A REMOVE TASK
+    private Iterator<TieredMap<K, V>> descend(Object key, int threshold, Queue<TieredMap<K, V>> changed) {
+        if (children.size() > threshold) {
+            new RemoveTask<>(new ArrayList<>(children), 0, children.size(), key, threshold, changed).compute();
+            return Collections.emptyIterator();
+        }
+        return children.iterator();
+    }
+
+    // REMOVES A KEY FROM THIS MAP ONLY, WITHOUT COPYING SHARED STORAGE WHICH
+    // DOES NOT HOLD THE KEY
+    private V removeLocal(Object key) {
+        if (!data.containsKey(key)) {
+            return null;
+        }
+        removed(key);
+        return writable().remove(key);
+    }
+
+    // AS ABOVE, BUT FROM WITHIN A REMOVE TASK ONLY CHANGING THE TABLE AND
+    // LEAVING THE VERSIONS, WHICH EVERY THREAD SHARES, TO THE CALLING THREAD.
+    // NOTHING ELSE NEEDS RECORDING, AS TRACKED FAMILIES ARE WALKED SERIALLY
+    private V removeLocal(Object key, Queue<TieredMap<K, V>> changed) {
+        if (changed == null) {
+            return removeLocal(key);
+        }
+        if (!data.containsKey(key)) {
+            return null;
+        }
+        changed.add(this);
+        return table().remove(key);
+    }
+
+    // STAMPS EVERY MAP A REMOVE TASK CHANGED, ONCE IT IS DONE
+    private static <K, V> void stamp(Queue<TieredMap<K, V>> changed) {
+        for (TieredMap<K, V> map : changed) {
+            map.touch();
+        }
+    }
+
+    // REMOVES A KEY FROM THIS MAP AND EVERY MAP BELOW IT WHICH THE KEY INDEX
+    // LISTS AS HOLDING IT
+    private V removeIndexed(Object key) {
+        Set<TieredMap<K, V>> holders = keyIndex.get(key);
+        if (holders == null) {
+            return null;
+        }
+        for (TieredMap<K, V> holder : new ArrayList<>(holders)) {
+            if (holder != this && holder.isBelow(this)) {
+                holder.removeLocal(key);
+            }
+        }
+        return removeLocal(key);
+    }
+
+    // REMOVES A BATCH OF KEYS FROM THIS MAP AND BELOW IN ONE POST-ORDER WALK,
+    // HANDING EVERY CHILD ONLY THE KEYS OF ITS PARENT'S BATCH IT MAY HOLD, AND
+    // COLLECTING THE VALUES THIS MAP HELD
+    private void removeBatch(Set<Object> keys, int threshold, Map<K, V> removed, Queue<TieredMap<K, V>> changed) {
+        Deque<TieredMap<K, V>> maps = new ArrayDeque<>();
+        Deque<Set<Object>> batches = new ArrayDeque<>();
+        Deque<Iterator<TieredMap<K, V>>> walks = new ArrayDeque<>();
+        maps.push(this);
+        batches.push(keys);
+        walks.push(descend(keys, threshold, changed));
+        while (true) {
+            Iterator<TieredMap<K, V>> walk = walks.peek();
+            if (walk.hasNext()) {
+                TieredMap<K, V> child = walk.next();
+                Set<Object> batch = child.holdable(batches.peek(), changed);
+                if (!batch.isEmpty()) {
+                    maps.push(child);
+                    batches.push(batch);
+                    walks.push(child.descend(batch, threshold, changed));
+                }
+            } else {
+                walks.pop();
+                TieredMap<K, V> map = maps.pop();
+                Set<Object> batch = batches.pop();
+                if (maps.isEmpty()) {
+                    map.removeAllLocal(batch, removed, changed);
+                    return;
+                }
+                map.removeAllLocal(batch, null, changed);
+            }
+        }
+    }
+
+    // THE CHILDREN A BATCH REMOVE STILL HAS TO WALK, AFTER HANDING THOSE OF A
+    // WIDE MAP TO A REMOVE TASK
+    private Iterator<TieredMap<K, V>> descend(Set<Object> keys, int threshold, Queue<TieredMap<K, V>> changed) {
+        if (children.size() > threshold) {
+            new RemoveAllTask<>(new ArrayList<>(children), 0, children.size(), keys, threshold, changed).compute();
+            return Collections.emptyIterator();
+        }
+        return children.iterator();
+    }
+
+    // THE KEYS OF A BATCH WHICH THIS MAP OR ANY MAP BELOW IT MAY HOLD, FOUND
+    // FROM WHICHEVER OF THE TWO IS SMALLER WHEN THIS MAP AND ITS SUMMARY KNOW
+    // EVERY KEY OF ITS CHILDREN
+    private Set<Object> holdable(Set<Object> keys) {
+        return holdable(keys, null);
+    }
+
+    // AS ABOVE, FROM WITHIN A REMOVE TASK WHEN GIVEN WHERE TO COLLECT THE MAPS
+    // IT CHANGED
+    private Set<Object> holdable(Set<Object> keys, Queue<TieredMap<K, V>> changed) {
+        if (loose && children.isEmpty() && changed == null) {
+            loose = false;
+        }
+        Set<Object> batch = new HashSet<>();
+        int known = summary == null ? data.size() : data.size() + summary.size();
+        if (loose && summary == null || keys.size() <= known) {
+            for (Object key : keys) {
+                if (mayHold(key, changed)) {
+                    batch.add(key);
+                }
+            }
+        } else {
+            for (K key : data.keySet()) {
+                if (keys.contains(key)) {
+                    batch.add(key);
+                }
+            }
+            if (summary != null) {
+                for (Object key : summary.keySet()) {
+                    if (keys.contains(key)) {
+                        batch.add(key);
+                    }
+                }
+            }
+        }
+        return batch;
+    }
+
+    // REMOVES A BATCH OF KEYS FROM THIS MAP ONLY, KEEPING THE VALUES REMOVED
+    // WHEN ASKED TO, AS removeLocal DOES FOR EACH OF THEM
+    private void removeAllLocal(Set<Object> keys, Map<K, V> removed, Queue<TieredMap<K, V>> changed) {
+        boolean collected = changed == null;
+        for (Object key : keys) {
+            if (data.containsKey(key)) {
+                if (!collected) {
+                    changed.add(this);
+                    collected = true;
+                }
+                V value = changed == null ? removeLocal(key) : table().remove(key);
+                if (removed != null) {
+                    removed.put(cast(key), value);
+                }
+            }
+        }
+    }
+
+    // THE DISTINCT KEYS OF A BATCH, AFTER APPLYING ANY QUEUED WRITE OF THEM
+    private Set<Object> settleAll(Collection<?> keys) {
+        TieredMap<K, V> root = getRoot();
+        Set<Object> batch = new HashSet<>(keys);
+        if (root.pending != null) {
+            for (Object key : batch) {
+                root.settle(key, null);
+            }
+        }
+        return batch;
+    }
+
+    // A KEY OF A BATCH, WHICH IS ONLY EVER CAST ONCE SOME MAP HOLDS IT
+    @SuppressWarnings("unchecked")
+    private K cast(Object key) {
+        return (K) key;
+    }
+
+    // TAKES EVERY KEY HELD FROM THIS MAP DOWN OUT OF THE SUMMARIES OF THE
+    // ANCESTORS OF THIS MAP
+    private void unsummarize() {
+        for (K key : data.keySet()) {
+            lower(key);
+        }
+        for (Object key : summary.keySet()) {
+            lower(key);
+        }
+    }
+
+    // EMPTIES THIS MAP ONLY, AS PART OF EMPTYING EVERY MAP BELOW IT TOO, AND
+    // KEEPS ITS TABLE UNLESS A SNAPSHOT SHARES IT
+    private void clearLocal() {
+        if (!data.isEmpty()) {
+            touch();
+        }
+        if (keyIndex != null) {
+            for (K key : data.keySet()) {
+                unindexKey(key);
+            }
+        }
+        if (summary != null) {
+            summary.clear();
+        }
+        if (shared) {
+            data = empty();
+            shared = false;
+        } else if (!data.isEmpty()) {
+            data.clear();
+        }
+        loose = false;
+    }
+
+    private boolean isBelow(TieredMap<K, V> ancestor) {
+        for (TieredMap<K, V> map = parent; map != null; map = map.parent) {
+            if (map == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // TRUE WHEN KEYS ENTERING OR LEAVING THIS MAP MUST BE RECORDED
+    private boolean tracked() {
+        return keyIndex != null || summary != null;
+    }
+
+    // RECORDS A KEY NEW TO THIS MAP IN THE KEY INDEX AND, UNLESS A MAP BELOW
+    // ALREADY HELD IT, IN THE SUMMARIES OF THE GREATER MAPS
+    private void added(Object key) {
+        indexKey(key);
+        if (summary != null && summary.remove(key) == null) {
+            raise(key);
+        }
+    }
+
+    // RECORDS A KEY LEAVING THIS MAP, IN ITS SUMMARY WHEN A CHILD STILL HOLDS
+    // IT AND IN THE SUMMARIES OF THE GREATER MAPS OTHERWISE
+    private void removed(Object key) {
+        unindexKey(key);
+        if (summary != null) {
+            int holding = 0;
+            for (TieredMap<K, V> child : children) {
+                if (child.data.containsKey(key) || child.summary.containsKey(key)) {
+                    holding++;
+                }
+            }
+            if (holding > 0) {
+                summary.put(key, holding);
+            } else {
+                lower(key);
+            }
+        }
+    }
+
+    // RECORDS EVERY KEY LEAVING THIS MAP AT ONCE, COUNTING THOSE ITS CHILDREN
+    // STILL HOLD FROM THE CHILDREN RATHER THAN KEY BY KEY
+    private void removedAll() {
+        Map<Object, Integer> held = new HashMap<>();
+        for (TieredMap<K, V> child : children) {
+            count(held, child.data.keySet(), EMPTY);
+            count(held, child.summary.keySet(), EMPTY);
+        }
+        for (K key : data.keySet()) {
+            unindexKey(key);
+            if (!held.containsKey(key)) {
+                lower(key);
+            }
+        }
+        summary = held;
+    }
+
+    // COUNTS A KEY NOW HELD FROM THIS MAP DOWN IN THE SUMMARY OF EVERY
+    // GREATER MAP LACKING IT, UP TO THE FIRST WHICH ALREADY HELD IT BELOW
+    private void raise(Object key) {
+        for (TieredMap<K, V> map = this; map.parent != null && !map.unlisted; map = map.parent) {
+            Map<Object, Integer> summary = map.parent.summary;
+            if (map.parent.data.containsKey(key)) {
+                return;
+            }
+            Integer holding = summary.put(key, summary.containsKey(key) ? summary.get(key) + 1 : 1);
+            if (holding != null) {
+                return;
+            }
+        }
+    }
+
+    // UNCOUNTS A KEY NO LONGER HELD FROM THIS MAP DOWN FROM THE SUMMARY OF
+    // EVERY GREATER MAP LACKING IT, UP TO THE FIRST WHICH STILL HOLDS IT BELOW
+    private void lower(Object key) {
+        for (TieredMap<K, V> map = this; map.parent != null && !map.unlisted; map = map.parent) {
+            Map<Object, Integer> summary = map.parent.summary;
+            if (map.parent.data.containsKey(key)) {
+                return;
+            }
+            int holding = summary.get(key);
+            if (holding > 1) {
+                summary.put(key, holding - 1);
+                return;
+            }
+            summary.remove(key);
+        }
+    }
+
+    // BUILDS THE SUMMARY OF THIS MAP FROM THE KEYS AND SUMMARIES OF ITS
+    // CHILDREN, WHICH MUST ALREADY BE SUMMARIZED
+    private void summarize() {
+        Map<Object, Integer> held = new HashMap<>(0);
+        for (TieredMap<K, V> child : children) {
+            count(held, child.data.keySet(), data);
+            count(held, child.summary.keySet(), data);
+        }
+        summary = held;
+    }
+
+    // ADDS ONE TO THE COUNT OF EVERY KEY OF A SET WHICH A MAP LACKS
+    private static void count(Map<Object, Integer> counts, Set<?> keys, Map<?, ?> except) {
+        for (Object key : keys) {
+            if (!except.containsKey(key)) {
+                Integer count = counts.get(key);
+                counts.put(key, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private void indexKey(Object key) {
+        if (keyIndex != null) {
+            Set<TieredMap<K, V>> holders = keyIndex.get(key);
+            if (holders == null) {
+                holders = newTierSet();
+                keyIndex.put(key, holders);
+            }
+            holders.add(this);
+        }
+    }
+
+    private void unindexKey(Object key) {
+        if (keyIndex != null) {
+            Set<TieredMap<K, V>> holders = keyIndex.get(key);
+            if (holders != null && holders.remove(this) && holders.isEmpty()) {
+                keyIndex.remove(key);
+            }
+        }
+    }
+
+    // MOVES THIS MAP AND EVERY MAP BELOW IT FROM THEIR CURRENT KEY INDEX TO
+    // ANOTHER ONE, OR TO NONE
+    private void reindex(Map<Object, Set<TieredMap<K, V>>> index) {
+        for (TieredMap<K, V> map : subtree()) {
+            for (K key : map.data.keySet()) {
+                map.unindexKey(key);
+            }
+            map.keyIndex = index;
+            for (K key : map.data.keySet()) {
+                map.indexKey(key);
+            }
+        }
+    }
+
+    // MAKES THIS MAP THE ROOT OF EVERY MAP BELOW IT
+    private void reroot() {
+        for (TieredMap<K, V> map : subtree()) {
+            map.root = this;
+            map.generation = map == this ? 0 : map.parent.generation + 1;
+        }
+    }
+
+    // REMEMBERS A CLONE OF A MAP OF THIS FAMILY, DROPPING THOSE SINCE
+    // COLLECTED OR DETACHED EVERY TIME THE LIST DOUBLES
+    private void addClone(TieredMap<K, V> clone) {
+        if (clones == null) {
+            clones = new ArrayList<>();
+        } else if (clones.size() >= 16 && Integer.bitCount(clones.size()) == 1) {
+            for (Iterator<WeakReference<TieredMap<K, V>>> it = clones.iterator(); it.hasNext();) {
+                TieredMap<K, V> map = it.next().get();
+                if (map == null || map.root != this) {
+                    it.remove();
+                }
+            }
+        }
+        clones.add(new WeakReference<>(clone));
+    }
+
+    // TAKES OVER THE CLONES OF A FORMER ROOT WHICH NOW HANG BELOW THIS MAP,
+    // AFTER IT WAS DETACHED, AND MAKES THIS MAP THEIR ROOT AND THAT OF EVERY
+    // MAP BELOW THEM
+    private void adoptClones(TieredMap<K, V> former) {
+        if (former.clones == null) {
+            return;
+        }
+        for (Iterator<WeakReference<TieredMap<K, V>>> it = former.clones.iterator(); it.hasNext();) {
+            TieredMap<K, V> clone = it.next().get();
+            if (clone == null || clone.parent == null) {
+                it.remove();
+            } else if (clone.isBelow(this)) {
+                it.remove();
+                int generation = 0;
+                for (TieredMap<K, V> map = clone; map.parent != null; map = map.parent) {
+                    generation++;
+                }
+                for (TieredMap<K, V> map : clone.subtree()) {
+                    map.root = this;
+                    map.generation = map == clone ? generation : map.parent.generation + 1;
+                }
+                addClone(clone);
+            }
+        }
+    }
+
+    // ADDS EVERY MAP FROM THIS ONE DOWN WHICH HOLDS A KEY, SKIPPING EVERY
+    // SUBTREE WHICH CANNOT HOLD IT
+    private void collectHolders(Object key, Set<TieredMap<K, V>> holders) {
+        if (!mayHold(key)) {
+            return;
+        }
+        Deque<TieredMap<K, V>> maps = new ArrayDeque<>();
+        maps.push(this);
+        while (!maps.isEmpty()) {
+            TieredMap<K, V> map = maps.pop();
+            if (map.data.containsKey(key)) {
+                holders.add(map);
+            }
+            for (TieredMap<K, V> child : map.children) {
+                if (child.mayHold(key)) {
+                    maps.push(child);
+                }
+            }
+        }
+    }
+
+    // THIS MAP AND ALL OF ITS ANCESTORS, INDEXED BY GENERATION
+    @SuppressWarnings("unchecked")
+    private TieredMap<K, V>[] lineage() {
+        TieredMap<K, V>[] lineage = (TieredMap<K, V>[]) new TieredMap<?, ?>[generation + 1];
+        for (TieredMap<K, V> map = this; map != null; map = map.parent) {
+            lineage[map.generation] = map;
+        }
+        return lineage;
+    }
+
+    // THIS MAP AND EVERY MAP BELOW IT, EVERY PARENT BEFORE ITS CHILDREN AND
+    // SIBLINGS IN ORDER
+    private List<TieredMap<K, V>> subtree() {
+        List<TieredMap<K, V>> maps = new ArrayList<>();
+        maps.add(this);
+        for (int i = 0; i < maps.size(); i++) {
+            maps.addAll(maps.get(i).children);
+        }
+        return maps;
+    }
+
+    private static <K, V> Set<TieredMap<K, V>> newTierSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<TieredMap<K, V>, Boolean>(4));
+    }
+
+    // STAMPS THE ENTRIES OF THIS MAP AS CHANGED
+    private void touch() {
+        version = root.clock;
+        touchSubtree();
+    }
+
+    // STAMPS THIS MAP AND EVERY GREATER ONE AS HAVING CHANGED FROM THEM DOWN,
+    // STOPPING AT THE FIRST ONE ALREADY STAMPED, WHOSE ANCESTORS ALWAYS ARE TOO
+    private void touchSubtree() {
+        long stamp = root.clock;
+        for (TieredMap<K, V> map = this; map != null && map.subtreeVersion != stamp; map = map.parent) {
+            map.subtreeVersion = stamp;
+        }
+    }
+
+    // RETURNS A VERSION, MOVING THE CLOCK ON IF CHANGES MADE RIGHT NOW COULD
+    // OTHERWISE LEAVE IT AS IT IS
+    private long observe(long stamp) {
+        if (stamp == root.clock) {
+            root.clock++;
+        }
+        return stamp;
+    }
+
+    // RETURNS THE DATA STORAGE, FIRST CREATING IT IF THIS MAP HAS NONE YET OR
+    // COPYING IT IF A SNAPSHOT SHARES IT
+    private Map<K, V> writable() {
+        checkLive();
+        touch();
+        return table();
+    }
+
+    // AS ABOVE, WITHOUT STAMPING THE MAP AS CHANGED
+    private Map<K, V> table() {
+        if (data == EMPTY) {
+            data = storage.create(getGeneration());
+            shared = false;
+        } else if (shared) {
+            data = storage.copy(data, getGeneration());
+            shared = false;
+        }
+        return data;
+    }
+
+
+    // THE SHARED EMPTY STORAGE AND CHILDREN, AS THOSE OF A MAP OF ANY TYPE
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map<K, V> empty() {
+        return (Map<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> List<TieredMap<K, V>> noChildren() {
+        return (List<TieredMap<K, V>>) NO_CHILDREN;
+    }
+
+    private void addChild(TieredMap<K, V> map) {
+        if (children == NO_CHILDREN) {
+            children = new LinkedList<>();
+        }
+        children.add(map);
+    }
+
+    private void checkLive() {
+        if (frozen) {
+            throw new UnsupportedOperationException("May not modify a snapshot");
+        }
+    }
+
+    // TAKES THE STATE OF THIS MAP AND EVERY MAP BELOW IT, SHARING THEIR
+    // STORAGE. ONLY THE SUBTREES WHICH CHANGED SINCE THE LAST SNAPSHOT ARE
+    // WALKED, CHILDREN BEFORE THEIR PARENTS. EVERY STATE REUSED IS HELD
+    // UNTIL THE END, SINCE NOTHING ELSE MAY KEEP IT FROM BEING COLLECTED
+    private Frozen<K, V> freeze() {
+        Frozen<K, V> last = frozenState();
+        if (last != null) {
+            return last;
+        }
+        Map<TieredMap<K, V>, Frozen<K, V>> states = new IdentityHashMap<>();
+        List<TieredMap<K, V>> stale = new ArrayList<>();
+        stale.add(this);
+        for (int i = 0; i < stale.size(); i++) {
+            for (TieredMap<K, V> child : stale.get(i).children) {
+                Frozen<K, V> state = child.frozenState();
+                if (state == null) {
+                    stale.add(child);
+                } else {
+                    states.put(child, state);
+                }
+            }
+        }
+        for (int i = stale.size() - 1; i >= 0; i--) {
+            TieredMap<K, V> map = stale.get(i);
+            List<Frozen<K, V>> children = new ArrayList<>(map.children.size());
+            for (TieredMap<K, V> child : map.children) {
+                children.add(states.get(child));
+            }
+            Frozen<K, V> state = new Frozen<>(map, children);
+            map.shared = true;
+            map.lastFrozen = new WeakReference<>(state);
+            states.put(map, state);
+        }
+        return states.get(this);
+    }
+
+    // THE STATE THE LAST SNAPSHOT TOOK OF THIS SUBTREE, OR NULL IF IT CHANGED
+    // SINCE OR NO SNAPSHOT USES IT ANY MORE
+    private Frozen<K, V> frozenState() {
+        Frozen<K, V> state = lastFrozen == null ? null : lastFrozen.get();
+        if (state == null || state.subtreeVersion != subtreeVersion || (state.summary == null) != (summary == null)) {
+            return null;
+        }
+        return state;
+    }
+
+    // CREATES THE SNAPSHOT MAP OF A FROZEN STATE, WHOSE CHILDREN ARE ONLY
+    // CREATED ONCE THEY ARE REACHED
+    private static <K, V> TieredMap<K, V> thaw(Frozen<K, V> state, TieredMap<K, V> parent, TierStorage<K, V> storage) {
+        TieredMap<K, V> map = new TieredMap<>(parent, state.data, storage);
+        map.frozen = true;
+        map.loose = state.loose;
+        // COPIED, SO THAT NOTHING DONE THROUGH ONE SNAPSHOT REACHES ANOTHER
+        map.summary = state.summary == null ? null : new HashMap<>(state.summary);
+        map.version = state.version;
+        map.subtreeVersion = state.subtreeVersion;
+        if (!state.children.isEmpty()) {
+            map.children = map.new FrozenChildren(state.children);
+        }
+        return map;
+    }
+
+    // EVERY MAP ON ITS OWN LINE, INDENTED ONE SPACE LESS THAN ITS GENERATION
+    // BELOW THE HEAD
+    private static String plot(TieredMap<?, ?> map) {
+        StringBuilder graph = new StringBuilder();
+        Deque<TieredMap<?, ?>> maps = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        maps.push(map);
+        depths.push(0);
+        while (!maps.isEmpty()) {
+            TieredMap<?, ?> current = maps.pop();
+            int depth = depths.pop();
+            if (depth > 0) {
+                graph.append('\n');
+                for (int i = 1; i < depth; i++) {
+                    graph.append(' ');
+                }
+            }
+            graph.append(current.data);
+
+            List<? extends TieredMap<?, ?>> children = current.children;
+            for (ListIterator<? extends TieredMap<?, ?>> it = children.listIterator(children.size()); it.hasPrevious();) {
+                maps.push(it.previous());
+                depths.push(depth + 1);
+            }
+        }
+        return graph.toString();
+    }
+
+    // INTERNAL CLASSES
+    // ITERATES OVER THE STORAGE THIS MAP HELD WHEN THE ITERATION STARTED. ONCE
+    // THAT STORAGE HAS BEEN SHARED WITH A SNAPSHOT OR REPLACED, REMOVALS AND
+    // UPDATES GO TO THE CURRENT STORAGE INSTEAD
+    private abstract class ViewIterator<E> implements Iterator<E> {
+
+        final Map<K, V> source = data;
+        private final Iterator<Entry<K, V>> it = source.entrySet().iterator();
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            last = it.next();
+            return element(last);
+        }
+
+        @Override
+        public void remove() {
+            checkLive();
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            settle(last.getKey());
+            if (isDirect()) {
+                touch();
+                it.remove();
+            } else {
+                writable().remove(last.getKey());
+            }
+            removed(last.getKey());
+            loosen(last.getKey());
+            if (root.log != null) {
+                root.log.removeLocal(TieredMap.this, last.getKey());
+            }
+            last = null;
+        }
+
+        boolean isDirect() {
+            checkLive();
+            return data == source && !shared;
+        }
+
+        abstract E element(Entry<K, V> entry);
+    }
+
+    private final class EntryView extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new ViewIterator<Entry<K, V>>() {
+                @Override
+                Entry<K, V> element(final Entry<K, V> entry) {
+                    return new AbstractMap.SimpleEntry<K, V>(entry) {
+                        @Override
+                        public V setValue(V value) {
+                            checkLive();
+                            settle(entry.getKey());
+                            super.setValue(value);
+                            if (parent != null || !children.isEmpty()) {
+                                replacing(entry.getKey(), value);
+                            }
+                            V previous;
+                            if (isDirect()) {
+                                touch();
+                                previous = entry.setValue(value);
+                            } else {
+                                previous = writable().put(entry.getKey(), value);
+                            }
+                            if (root.log != null) {
+                                root.log.replace(TieredMap.this, entry.getKey(), value);
+                            }
+                            return previous;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return data.containsKey(entry.getKey()) && Objects.equals(data.get(entry.getKey()), entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            checkLive();
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Object key = ((Entry<?, ?>) o).getKey();
+            settle(key);
+            if (!contains(o)) {
+                return false;
+            }
+            removeLocal(key);
+            loosen(key);
+            if (root.log != null) {
+                root.log.removeLocal(TieredMap.this, key);
+            }
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            TieredMap.this.clear();
+        }
+    }
+
+    private final class KeyView extends AbstractSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<K>() {
+                @Override
+                K element(Entry<K, V> entry) {
+                    return entry.getKey();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return data.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            checkLive();
+            settle(o);
+            if (!data.containsKey(o)) {
+                return false;
+            }
+            removeLocal(o);
+            loosen(o);
+            if (root.log != null) {
+                root.log.removeLocal(TieredMap.this, o);
+            }
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            TieredMap.this.clear();
+        }
+    }
+
+    private final class ValueView extends AbstractCollection<V> {
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<V>() {
+                @Override
+                V element(Entry<K, V> entry) {
+                    return entry.getValue();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return data.containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            TieredMap.this.clear();
+        }
+    }
+
+    // THE STATE OF A MAP AND EVERY MAP BELOW IT AS A SNAPSHOT TOOK IT, WHICH
+    // NEVER CHANGES AND IS SHARED BY EVERY SNAPSHOT TAKEN BEFORE IT CHANGED
+    private static final class Frozen<K, V> {
+
+        private final Map<K, V> data;
+        private final boolean loose;
+        private final Map<Object, Integer> summary;
+        private final long version;
+        private final long subtreeVersion;
+        private final List<Frozen<K, V>> children;
+
+        Frozen(TieredMap<K, V> map, List<Frozen<K, V>> children) {
+            data = map.data;
+            loose = map.loose;
+            summary = map.summary == null ? null : new HashMap<>(map.summary);
+            version = map.version;
+            subtreeVersion = map.subtreeVersion;
+            this.children = children;
+        }
+    }
+
+    // THE CHILDREN OF A SNAPSHOT MAP, EACH CREATED THE FIRST TIME IT IS REACHED
+    private final class FrozenChildren extends AbstractList<TieredMap<K, V>> {
+
+        private final List<Frozen<K, V>> states;
+        private final List<TieredMap<K, V>> maps;
+
+        FrozenChildren(List<Frozen<K, V>> states) {
+            this.states = states;
+            maps = new ArrayList<>(Collections.<TieredMap<K, V>>nCopies(states.size(), null));
+        }
+
+        @Override
+        public synchronized TieredMap<K, V> get(int index) {
+            if (maps.get(index) == null) {
+                maps.set(index, thaw(states.get(index), TieredMap.this, storage));
+            }
+            return maps.get(index);
+        }
+
+        @Override
+        public int size() {
+            return maps.size();
+        }
+    }
+
+    // A WRITE WAITING TO BE PROPAGATED ABOVE THE MAP IT WAS MADE IN
+    private static class Pending<K, V> {
+
+        private final TieredMap<K, V> origin;
+        private final K key;
+        private V value;
+
+        Pending(TieredMap<K, V> origin, K key, V value) {
+            this.origin = origin;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // SPLITS A RANGE OF SIBLINGS UNTIL IT IS SMALL ENOUGH TO WALK SERIALLY
+    private static class RemoveTask<K, V> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<TieredMap<K, V>> maps;
+        private final int from, to;
+        private final Object key;
+        private final int threshold;
+        private final Queue<TieredMap<K, V>> changed;
+
+        RemoveTask(List<TieredMap<K, V>> maps, int from, int to, Object key, int threshold, Queue<TieredMap<K, V>> changed) {
+            this.maps = maps;
+            this.from = from;
+            this.to = to;
+            this.key = key;
+            this.threshold = threshold;
+            this.changed = changed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RemoveTask<>(maps, from, middle, key, threshold, changed),
+                        new RemoveTask<>(maps, middle, to, key, threshold, changed));
+            } else {
+                for (int i = from; i < to; i++) {
+                    if (maps.get(i).mayHold(key, changed)) {
+                        maps.get(i).removeCascade(key, threshold, changed);
+                    }
+                }
+            }
+        }
+    }
+
+    // SPLITS A RANGE OF SIBLINGS UNTIL IT IS SMALL ENOUGH TO WALK SERIALLY,
+    // REMOVING A WHOLE BATCH OF KEYS
+    private static class RemoveAllTask<K, V> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<TieredMap<K, V>> maps;
+        private final int from, to;
+        private final Set<Object> keys;
+        private final int threshold;
+        private final Queue<TieredMap<K, V>> changed;
+
+        RemoveAllTask(List<TieredMap<K, V>> maps, int from, int to, Set<Object> keys, int threshold,
+                Queue<TieredMap<K, V>> changed) {
+            this.maps = maps;
+            this.from = from;
+            this.to = to;
+            this.keys = keys;
+            this.threshold = threshold;
+            this.changed = changed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RemoveAllTask<>(maps, from, middle, keys, threshold, changed),
+                        new RemoveAllTask<>(maps, middle, to, keys, threshold, changed));
+            } else {
+                for (int i = from; i < to; i++) {
+                    Set<Object> batch = maps.get(i).holdable(keys, changed);
+                    if (!batch.isEmpty()) {
+                        maps.get(i).removeBatch(batch, threshold, null, changed);
+                    }
+                }
+            }
+        }
     }
 }
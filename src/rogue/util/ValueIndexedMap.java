@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Map which wraps another one and keeps every value it holds mapped back to
+ * the keys it is held under, so that containsValue takes constant time
+ * instead of a scan of every entry. Every change, including those made
+ * through the views and their iterators, goes through this map so that the
+ * index can follow it.
+ *
+ * @author Rogue <Alice Q.>
+ * @param <K> the type of object to use as a key
+ * @param <V> the type of object to store under specific keys
+ */
+class ValueIndexedMap<K, V> extends AbstractMap<K, V> {
+
+    private final Map<K, V> map;
+
+    // EVERY VALUE, MAPPED TO ITS ONLY KEY OR TO A KEYSET OF ALL ITS KEYS
+    private final Map<V, Object> index = new HashMap<>();
+
+    /**
+     * Creates an index over a map and all the entries it already holds
+     *
+     * @param map the map to index
+     */
+    ValueIndexedMap(Map<K, V> map) {
+        this.map = map;
+        for (Entry<K, V> entry : map.entrySet()) {
+            index(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Retrieves the map which holds the entries
+     *
+     * @return the indexed map
+     */
+    Map<K, V> getIndexed() {
+        return map;
+    }
+
+    /**
+     * Retrieves every key a value is held under
+     *
+     * @param value the value to look up
+     * @return an unmodifiable set of keys, empty if the value is not held
+     */
+    @SuppressWarnings("unchecked")
+    Set<K> keysOf(Object value) {
+        Object keys = index.get(value);
+        if (keys instanceof KeySet) {
+            return Collections.unmodifiableSet((KeySet<K>) keys);
+        }
+        return keys != null || index.containsKey(value) ? Collections.singleton((K) keys) : Collections.<K>emptySet();
+    }
+
+    // MAP METHODS
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return index.containsKey(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        return map.get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        boolean replaced = map.containsKey(key);
+        V old = map.put(key, value);
+        if (!replaced) {
+            index(key, value);
+        } else if (old != value) {
+            unindex(key, old);
+            index(key, value);
+        }
+        return old;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!map.containsKey(key)) {
+            return null;
+        }
+        V old = map.remove(key);
+        unindex(key, old);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+        index.clear();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new IndexedIterator();
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+
+            @Override
+            public void clear() {
+                ValueIndexedMap.this.clear();
+            }
+        };
+    }
+
+    // INTERNAL METHODS
+    @SuppressWarnings("unchecked")
+    private void index(K key, V value) {
+        Object keys = index.get(value);
+        if (keys instanceof KeySet) {
+            ((KeySet<K>) keys).add(key);
+        } else if (keys != null || index.containsKey(value)) {
+            KeySet<K> set = new KeySet<>();
+            set.add((K) keys);
+            set.add(key);
+            index.put(value, set);
+        } else {
+            index.put(value, key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void unindex(Object key, V value) {
+        Object keys = index.get(value);
+        if (keys instanceof KeySet) {
+            KeySet<K> set = (KeySet<K>) keys;
+            set.remove(key);
+            if (set.size() == 1) {
+                index.put(value, set.iterator().next());
+            }
+        } else if (Objects.equals(keys, key)) {
+            index.remove(value);
+        }
+    }
+
+    // INTERNAL CLASSES
+    // THE KEYS OF A VALUE HELD UNDER SEVERAL KEYS, TOLD APART FROM A SINGLE KEY
+    // WHICH HAPPENS TO BE A SET BY ITS CLASS
+    private static final class KeySet<K> extends HashSet<K> {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // ITERATES OVER THE INDEXED MAP, UPDATING THE INDEX ON EVERY CHANGE
+    private final class IndexedIterator implements Iterator<Entry<K, V>> {
+
+        private final Iterator<Entry<K, V>> it = map.entrySet().iterator();
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            final Entry<K, V> entry = it.next();
+            last = entry;
+            return new SimpleEntry<K, V>(entry) {
+                @Override
+                public V setValue(V value) {
+                    super.setValue(value);
+                    V old = entry.setValue(value);
+                    if (old != value) {
+                        unindex(entry.getKey(), old);
+                        index(entry.getKey(), value);
+                    }
+                    return old;
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            K key = last.getKey();
+            V value = last.getValue();
+            it.remove();
+            unindex(key, value);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,903 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rogue.util.*;
+
+/**
+ * Rough throughput measurements for the TieredMap family. Every section prints
+ * one line per configuration; pass section names as arguments to only run
+ * those, or nothing to run them all.
+ *
+ * @author Rogue <Alice Q.>
+ */
+public class Benchmark {
+
+    // HOW LONG EVERY MEASUREMENT RUNS FOR
+    private static final long MILLIS = 1000;
+
+    // KEEPS RESULTS ALIVE SO THE JIT CANNOT DISCARD THE MEASURED WORK
+    private static volatile long sink;
+
+    /**
+     * Main method
+     *
+     * @param args the names of the sections to run, or none for all of them
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> sections = java.util.Arrays.asList(args);
+
+        if (sections.isEmpty() || sections.contains("reads")) {
+            reads();
+        }
+        if (sections.isEmpty() || sections.contains("remove")) {
+            remove();
+        }
+        if (sections.isEmpty() || sections.contains("memory")) {
+            memory();
+        }
+        if (sections.isEmpty() || sections.contains("offheap")) {
+            offHeap();
+        }
+        if (sections.isEmpty() || sections.contains("values")) {
+            values();
+        }
+        if (sections.isEmpty() || sections.contains("sparse")) {
+            sparse();
+        }
+        if (sections.isEmpty() || sections.contains("depth")) {
+            depth();
+        }
+        if (sections.isEmpty() || sections.contains("summary")) {
+            summary();
+        }
+        if (sections.isEmpty() || sections.contains("batch")) {
+            batch();
+        }
+        if (sections.isEmpty() || sections.contains("reset")) {
+            reset();
+        }
+        if (sections.isEmpty() || sections.contains("versions")) {
+            versions();
+        }
+        if (sections.isEmpty() || sections.contains("format")) {
+            format();
+        }
+        if (sections.isEmpty() || sections.contains("mapped")) {
+            mapped();
+        }
+        if (sections.isEmpty() || sections.contains("log")) {
+            log();
+        }
+    }
+
+    // SECTIONS
+    // - reads
+    // - remove
+    // - memory
+    // - offheap
+    // - values
+    // - sparse
+    // - depth
+    // - summary
+    // - batch
+    // - reset
+    // - versions
+    // - format
+    // - mapped
+    // - log
+    /**
+     * Compares leaf get/containsKey throughput of a TieredMap family behind a
+     * single family-wide lock with a ConcurrentTieredMap family, each while one
+     * writer keeps putting into and removing from a sibling leaf
+     */
+    private static void reads() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(2, cores * 2); threads *= 2) {
+            final TieredMap<Integer, Integer> plain = new TieredMap<>();
+            final TieredMap<Integer, Integer> plainLeaf = plain.child().child();
+            final TieredMap<Integer, Integer> plainOther = plainLeaf.sibling();
+            fill(plainLeaf);
+
+            final ConcurrentTieredMap<Integer, Integer> conc = new ConcurrentTieredMap<>();
+            final ConcurrentTieredMap<Integer, Integer> concLeaf = conc.child().child();
+            final ConcurrentTieredMap<Integer, Integer> concOther = concLeaf.sibling();
+            fill(concLeaf);
+
+            long locked = measure(threads, new Op() {
+                @Override
+                public boolean read(int key) {
+                    synchronized (plain) {
+                        return plainLeaf.containsKey(key) && plainLeaf.get(key) != null;
+                    }
+                }
+
+                @Override
+                public void write(int key) {
+                    synchronized (plain) {
+                        plainOther.put(key, key);
+                        plainOther.remove(key);
+                    }
+                }
+            });
+
+            long lockFree = measure(threads, new Op() {
+                @Override
+                public boolean read(int key) {
+                    return concLeaf.containsKey(key) && concLeaf.get(key) != null;
+                }
+
+                @Override
+                public void write(int key) {
+                    concOther.put(key, key);
+                    concOther.remove(key);
+                }
+            });
+
+            System.out.printf("reads   threads=%-3d TieredMap+lock %,14d ops/s   ConcurrentTieredMap %,14d ops/s%n",
+                    threads, locked, lockFree);
+        }
+    }
+
+    /**
+     * Compares the serial remove cascade with the fork/join cascade on a root
+     * with tens of thousands of leaf children, a few of which hold the key
+     */
+    private static void remove() {
+        ForkJoinPool pool = new ForkJoinPool();
+        for (int width : new int[]{1000, 10000, 40000}) {
+            TieredMap<Integer, Integer> root = new TieredMap<>();
+            List<TieredMap<Integer, Integer>> leaves = new ArrayList<>();
+            for (int i = 0; i < width; i++) {
+                leaves.add(root.child());
+            }
+
+            long serial = 0, parallel = 0;
+            for (int round = 0; round < 200; round++) {
+                leaves.get(round % width).put(round, round);
+                leaves.get((round * 31) % width).put(round, round);
+                long start = System.nanoTime();
+                if (round % 2 == 0) {
+                    root.remove(round);
+                    serial += System.nanoTime() - start;
+                } else {
+                    root.remove(round, pool);
+                    parallel += System.nanoTime() - start;
+                }
+            }
+
+            System.out.printf("remove  children=%-6d serial %,10d ns/op   fork/join %,10d ns/op (%d threads)%n",
+                    width, serial / 100, parallel / 100, pool.getParallelism());
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Compares the heap taken by regular and shared-storage families, filling
+     * the deepest map of a single chain so that every entry is held by every
+     * generation, then measures the heap taken by a great many empty children
+     * and by a great many children holding a few entries each
+     */
+    private static void memory() {
+        int entries = 200000;
+        Integer[] keys = new Integer[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = i;
+        }
+
+        for (int depth : new int[]{1, 2, 5, 10}) {
+            long[] bytes = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                long before = usedHeap();
+                TieredMap<Integer, Integer> root = mode == 0 ? new TieredMap<Integer, Integer>() : TieredMap.<Integer, Integer>withSharedStorage();
+                TieredMap<Integer, Integer> leaf = root;
+                for (int i = 1; i < depth; i++) {
+                    leaf = leaf.child();
+                }
+                for (Integer key : keys) {
+                    leaf.put(key, key);
+                }
+                bytes[mode] = usedHeap() - before;
+                sink += root.size();
+            }
+
+            System.out.printf("memory  generations=%-3d regular %6.1f B/entry (%5.1f per generation)   shared %6.1f B/entry (%5.1f per generation)%n",
+                    depth, (double) bytes[0] / entries, (double) bytes[0] / entries / depth,
+                    (double) bytes[1] / entries, (double) bytes[1] / entries / depth);
+        }
+
+        int tiers = 200000;
+        long before = usedHeap();
+        TieredMap<Integer, Integer> root = new TieredMap<>();
+        for (int i = 0; i < tiers; i++) {
+            root.child();
+        }
+        long idle = usedHeap() - before;
+        sink += root.getNumChildren();
+        System.out.printf("memory  idle children=%-6d %6.1f B/tier%n", tiers, (double) idle / tiers);
+
+        for (int small : new int[]{1, 4, 8}) {
+            long[] bytes = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                before = usedHeap();
+                root = mode == 0 ? new TieredMap<Integer, Integer>() : new TieredMap<>(TierStorage.<Integer, Integer>adaptive());
+                for (int i = 0; i < tiers; i++) {
+                    TieredMap<Integer, Integer> leaf = root.child();
+                    for (int j = 0; j < small; j++) {
+                        leaf.put(keys[j], keys[j]);
+                    }
+                }
+                bytes[mode] = usedHeap() - before;
+                sink += root.getNumChildren();
+            }
+            System.out.printf("memory  small children=%-6d entries=%d   hashed %6.1f B/tier   adaptive %6.1f B/tier%n",
+                    tiers, small, (double) bytes[0] / tiers, (double) bytes[1] / tiers);
+        }
+    }
+
+    /**
+     * Compares the heap taken by a large root kept in a HashMap and kept off
+     * the heap, and the cost of looking keys up in it from a leaf
+     */
+    private static void offHeap() {
+        int entries = 2000000;
+        for (int mode = 0; mode < 2; mode++) {
+            long before = usedHeap();
+            TieredMap<Long, Long> root = mode == 0 ? new TieredMap<Long, Long>()
+                    : new TieredMap<>(TierStorage.offHeap(Serializer.LONG, Serializer.LONG));
+            TieredMap<Long, Long> leaf = root.child().child();
+            for (long i = 0; i < entries; i++) {
+                root.put(i, i);
+            }
+            long bytes = usedHeap() - before;
+
+            long hits = 0;
+            long start = System.nanoTime();
+            for (long i = 0; i < entries; i++) {
+                if (leaf.containsKeyInFamily(i * 3)) {
+                    hits++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            sink += hits + leaf.size();
+
+            System.out.printf("offheap entries=%-8d %-8s heap %6.1f B/entry   containsKeyInFamily %5.1f ns/op%n",
+                    entries, mode == 0 ? "hashed" : "off-heap", (double) bytes / entries, (double) elapsed / entries);
+        }
+    }
+
+    /**
+     * Compares value lookups on a family whose root scans its entries with one
+     * whose root indexes its values, both on the family and on a leaf
+     */
+    private static void values() {
+        int entries = 100000;
+        for (int mode = 0; mode < 2; mode++) {
+            TieredMap<Integer, Integer> root = mode == 0 ? new TieredMap<Integer, Integer>()
+                    : new TieredMap<>(TierStorage.valueIndexed(TierStorage.<Integer, Integer>hashed()));
+            TieredMap<Integer, Integer> leaf = root.child().child();
+            for (int i = 0; i < entries; i++) {
+                (i % 100 == 0 ? leaf : root).put(i, i);
+            }
+
+            int lookups = 2000;
+            long hits = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (leaf.containsValueInFamily(i * 53 % (entries * 2))) {
+                    hits++;
+                }
+            }
+            long family = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (leaf.containsValue(i * 53 % (entries * 2))) {
+                    hits++;
+                }
+            }
+            long local = System.nanoTime() - start;
+            sink += hits;
+
+            System.out.printf("values  entries=%-7d %-7s containsValueInFamily %,10d ns/op   leaf containsValue %,8d ns/op%n",
+                    entries, mode == 0 ? "scanned" : "indexed", family / lookups, local / lookups);
+        }
+    }
+
+    /**
+     * Compares removes from the root of a wide two-level family with and
+     * without a key index, where every key is only held by two leaves, along
+     * with what the index adds to the cost of a put
+     */
+    private static void sparse() {
+        for (int width : new int[]{100, 1000, 5000}) {
+            long[] removes = new long[2];
+            long[] puts = new long[2];
+            int rounds = 2000;
+            for (int mode = 0; mode < 2; mode++) {
+                TieredMap<Integer, Integer> root = new TieredMap<>();
+                root.setKeyIndexed(mode == 1);
+                List<TieredMap<Integer, Integer>> leaves = new ArrayList<>();
+                for (int i = 0; i < width; i++) {
+                    TieredMap<Integer, Integer> branch = root.child();
+                    for (int j = 0; j < 4; j++) {
+                        leaves.add(branch.child());
+                    }
+                }
+
+                for (int round = 0; round < rounds; round++) {
+                    long start = System.nanoTime();
+                    leaves.get(round * 7 % leaves.size()).put(round, round);
+                    leaves.get(round * 31 % leaves.size()).put(round, round);
+                    puts[mode] += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    root.remove(round);
+                    removes[mode] += System.nanoTime() - start;
+                }
+                sink += root.size();
+            }
+
+            System.out.printf("sparse  tiers=%-6d remove pruned %,10d ns/op   indexed %,8d ns/op   put pruned %,6d ns/op   indexed %,6d ns/op%n",
+                    width * 5 + 1, removes[0] / rounds, removes[1] / rounds, puts[0] / rounds / 2, puts[1] / rounds / 2);
+        }
+    }
+
+    /**
+     * Measures the cost per generation of propagating a put from the leaf of a
+     * single deep chain, removing from its root and inheriting into its leaf
+     */
+    private static void depth() {
+        for (int depth : new int[]{10, 100, 1000, 5000, 20000}) {
+            TieredMap<Integer, Integer> root = new TieredMap<>();
+            TieredMap<Integer, Integer> leaf = root;
+            for (int i = 1; i < depth; i++) {
+                leaf = leaf.child();
+            }
+
+            int rounds = Math.max(20, 200000 / depth);
+            try {
+                long puts = 0, removes = 0, inherits = 0;
+                // THE FIRST HALF OF THE ROUNDS ONLY WARMS UP
+                for (int round = -rounds; round < rounds; round++) {
+                    if (round == 0) {
+                        puts = removes = inherits = 0;
+                    }
+                    int key = round & 63;
+                    long start = System.nanoTime();
+                    leaf.put(key, key);
+                    puts += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    root.remove(key);
+                    removes += System.nanoTime() - start;
+                    root.put(key, key);
+                    start = System.nanoTime();
+                    leaf.inherit(key);
+                    inherits += System.nanoTime() - start;
+                    root.remove(key);
+                }
+                long levels = (long) rounds * depth;
+                System.out.printf("depth   generations=%-6d put %6.1f ns/level   remove %6.1f ns/level   inherit %6.1f ns/level%n",
+                        depth, (double) puts / levels, (double) removes / levels, (double) inherits / levels);
+            } catch (StackOverflowError e) {
+                System.out.printf("depth   generations=%-6d stack overflow%n", depth);
+            }
+            sink += root.size();
+        }
+    }
+
+    /**
+     * Compares missed subtreeContainsKey lookups and removes on a cleared map
+     * with a thousand children, with and without subtree summaries
+     */
+    private static void summary() {
+        for (int mode = 0; mode < 2; mode++) {
+            TieredMap<Integer, Integer> root = new TieredMap<>();
+            TieredMap<Integer, Integer> fan = root.child();
+            for (int i = 0; i < 1000; i++) {
+                TieredMap<Integer, Integer> leaf = fan.child();
+                for (int j = 0; j < 20; j++) {
+                    leaf.put(i * 20 + j, j);
+                }
+            }
+            fan.clear();
+            root.setSubtreeSummaries(mode == 1);
+
+            int lookups = 20000;
+            long hits = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (fan.subtreeContainsKey(100000 + i)) {
+                    hits++;
+                }
+            }
+            long misses = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (fan.remove(100000 + i) != null) {
+                    hits++;
+                }
+            }
+            long removes = System.nanoTime() - start;
+            sink += hits;
+
+            System.out.printf("summary children=1000 %-10s missed subtreeContainsKey %,8d ns/op   missed remove %,8d ns/op%n",
+                    mode == 0 ? "unsummed" : "summarized", misses / lookups, removes / lookups);
+        }
+    }
+
+    /**
+     * Compares removing a batch of keys from a server-wide map with 2000
+     * channels one key at a time against a single removeAll
+     */
+    private static void batch() {
+        // THE FIRST BATCH ONLY WARMS UP
+        boolean warm = false;
+        for (int size : new int[]{1000, 100, 1000, 10000}) {
+            long[] times = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                TieredMap<Integer, Integer> root = new TieredMap<>();
+                List<TieredMap<Integer, Integer>> channels = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    channels.add(root.child());
+                }
+                Random random = new Random(1);
+                for (int user = 0; user < 50000; user++) {
+                    for (int j = 0; j < 2; j++) {
+                        channels.get(random.nextInt(channels.size())).put(user, user);
+                    }
+                }
+
+                List<Integer> users = new ArrayList<>();
+                for (int user = 0; user < size; user++) {
+                    users.add(user * 5);
+                }
+                long start = System.nanoTime();
+                if (mode == 0) {
+                    for (Integer user : users) {
+                        root.remove(user);
+                    }
+                } else {
+                    sink += root.removeAll(users).size();
+                }
+                times[mode] = System.nanoTime() - start;
+            }
+
+            if (warm) {
+                System.out.printf("batch   keys=%-6d remove loop %,12d ns   removeAll %,12d ns%n", size, times[0], times[1]);
+            }
+            warm = true;
+        }
+    }
+
+    /**
+     * Compares resetting a channel of eight sub-tiers by clearing each tier by
+     * hand, leaves first, against clearSubtree, both with and without a
+     * snapshot of the family taken before every reset
+     */
+    private static void reset() {
+        for (int snapshots = 0; snapshots < 2; snapshots++) {
+            long[] times = new long[2];
+            int rounds = 2000;
+            for (int mode = 0; mode < 2; mode++) {
+                TieredMap<Integer, Integer> root = new TieredMap<>();
+                TieredMap<Integer, Integer> channel = root.child();
+                List<TieredMap<Integer, Integer>> tiers = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    tiers.add(channel.child());
+                }
+
+                for (int round = -rounds; round < rounds; round++) {
+                    for (int user = 0; user < 400; user++) {
+                        tiers.get(user & 7).put(user, user);
+                    }
+                    if (snapshots == 1) {
+                        sink += root.snapshot().size();
+                    }
+
+                    long start = System.nanoTime();
+                    if (mode == 0) {
+                        for (TieredMap<Integer, Integer> tier : tiers) {
+                            tier.clear();
+                        }
+                        channel.clear();
+                    } else {
+                        channel.clearSubtree();
+                    }
+                    // THE FIRST HALF OF THE ROUNDS ONLY WARMS UP
+                    if (round >= 0) {
+                        times[mode] += System.nanoTime() - start;
+                    }
+                }
+            }
+
+            System.out.printf("reset   %-13s by hand %,8d ns/op   clearSubtree %,8d ns/op%n",
+                    snapshots == 0 ? "plain" : "snapshotted", times[0] / rounds, times[1] / rounds);
+        }
+    }
+
+    /**
+     * Compares rebuilding a sorted member list of a channel on every read
+     * against rebuilding it only when the version of the channel moved, with
+     * one write to the server for every ten reads
+     */
+    private static void versions() {
+        TieredMap<Integer, Integer> root = new TieredMap<>();
+        TieredMap<Integer, Integer> channel = root.child();
+        for (int user = 0; user < 200; user++) {
+            channel.put(user, user);
+        }
+        TieredMap<Integer, Integer> other = root.child();
+
+        int rounds = 200000;
+        long[] times = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            List<Integer> members = null;
+            long seen = -1;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                if (round % 10 == 0) {
+                    other.put(1000 + round % 500, round);
+                }
+                if (mode == 0 || channel.getVersion() != seen) {
+                    seen = channel.getVersion();
+                    members = new ArrayList<>(channel.keySet());
+                    Collections.sort(members);
+                }
+                sink += members.size();
+            }
+            times[mode] = System.nanoTime() - start;
+        }
+
+        System.out.printf("versions member list   rebuilt %,8d ns/read   cached by version %,8d ns/read%n",
+                times[0] / rounds, times[1] / rounds);
+    }
+
+    /**
+     * Compares saving a server of 50000 users in 500 channels of 200 users,
+     * each with four sub-tiers, as every entry of every tier against the
+     * family format, and loading it back by putting every entry against
+     * reading the format
+     */
+    @SuppressWarnings("unchecked")
+    private static void format() throws IOException {
+        TieredMap<Integer, Integer> root = new TieredMap<>();
+        List<TieredMap<Integer, Integer>> tiers = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            TieredMap<Integer, Integer> channel = root.child();
+            tiers.add(channel);
+            for (int j = 0; j < 4; j++) {
+                tiers.add(channel.child());
+            }
+            for (int user = 0; user < 200; user++) {
+                int key = random.nextInt(50000);
+                tiers.get(tiers.size() - 1 - random.nextInt(5)).put(key, key);
+            }
+        }
+        for (int user = 0; user < 50000; user++) {
+            root.put(user, user);
+        }
+
+        FamilyFormat<Integer, Integer> format = new FamilyFormat<>(Serializer.INTEGER, Serializer.INTEGER);
+        // ONLY THE LAST ROUND IS PRINTED, THE OTHERS WARM UP
+        for (int round = 0; round < 8; round++) {
+            // EVERY TIER AS ITS NUMBER OF CHILDREN AND ALL OF ITS ENTRIES
+            long start = System.nanoTime();
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(plain);
+            Deque<TieredMap<Integer, Integer>> maps = new ArrayDeque<>();
+            maps.push(root);
+            while (!maps.isEmpty()) {
+                TieredMap<Integer, Integer> map = maps.pop();
+                out.writeInt(map.getNumChildren());
+                out.writeInt(map.size());
+                for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                for (TieredMap<?, ?> child : map.getChildren()) {
+                    maps.push((TieredMap<Integer, Integer>) child);
+                }
+            }
+            long plainWrite = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ByteArrayOutputStream compact = new ByteArrayOutputStream();
+            format.write(root, compact);
+            long compactWrite = System.nanoTime() - start;
+
+            // REBUILDS THE PLAIN COPY WITH A PUT PER ENTRY OF EVERY TIER
+            start = System.nanoTime();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain.toByteArray()));
+            Deque<TieredMap<Integer, Integer>> parents = new ArrayDeque<>();
+            Deque<int[]> left = new ArrayDeque<>();
+            TieredMap<Integer, Integer> copy = null;
+            do {
+                TieredMap<Integer, Integer> map = parents.isEmpty() ? new TieredMap<Integer, Integer>() : parents.peek().child();
+                if (copy == null) {
+                    copy = map;
+                }
+                if (!left.isEmpty()) {
+                    left.peek()[0]--;
+                }
+                int children = in.readInt();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    map.put(in.readInt(), in.readInt());
+                }
+                parents.push(map);
+                left.push(new int[]{children});
+                while (!left.isEmpty() && left.peek()[0] == 0) {
+                    left.pop();
+                    parents.pop();
+                }
+            } while (!parents.isEmpty());
+            long plainRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TieredMap<Integer, Integer> read = format.read(new ByteArrayInputStream(compact.toByteArray()));
+            long compactRead = System.nanoTime() - start;
+            sink += copy.size() + read.size();
+
+            if (round == 7) {
+                System.out.printf("format  per-tier entries %,10d bytes  write %,6d us  put back %,6d us%n",
+                        plain.size(), plainWrite / 1000, plainRead / 1000);
+                System.out.printf("format  family format    %,10d bytes  write %,6d us  read     %,6d us%n",
+                        compact.size(), compactWrite / 1000, compactRead / 1000);
+            }
+        }
+    }
+
+    /**
+     * Compares starting with a root of 2000000 entries by putting every entry
+     * into an off-heap root against opening a mapped family holding them, and
+     * the cost of the first random gets afterwards
+     */
+    private static void mapped() throws IOException {
+        int entries = 2000000;
+        int gets = 100000;
+        File directory = new File(System.getProperty("java.io.tmpdir"), "tieredmap-benchmark");
+        MappedFamily<Long, Long> family = MappedFamily.open(directory, Serializer.LONG, Serializer.LONG);
+        TieredMap<Long, Long> root = family.getRoot();
+        if (root.size() != entries) {
+            root.clear();
+            for (long i = 0; i < entries; i++) {
+                root.put(i, i);
+            }
+        }
+        family.close();
+
+        Random random = new Random(1);
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            TieredMap<Long, Long> rebuilt = new TieredMap<>(TierStorage.offHeap(Serializer.LONG, Serializer.LONG));
+            for (long i = 0; i < entries; i++) {
+                rebuilt.put(i, i);
+            }
+            long rebuild = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            family = MappedFamily.open(directory, Serializer.LONG, Serializer.LONG);
+            long open = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long hits = 0;
+            for (int i = 0; i < gets; i++) {
+                if (family.getRoot().get((long) random.nextInt(entries)) != null) {
+                    hits++;
+                }
+            }
+            long get = System.nanoTime() - start;
+            sink += hits + rebuilt.size();
+            family.close();
+
+            System.out.printf("mapped  entries=%d   rebuild by puts %,8d us   open %,8d us   first gets %5.1f ns/op%n",
+                    entries, rebuild / 1000, open / 1000, (double) get / gets);
+        }
+    }
+
+    /**
+     * Compares putting 200000 entries into the channels of a family without a
+     * log against logging them with and without syncing, committing every
+     * change on its own and in groups, and then compares restoring the family
+     * by replaying the log against reading a checkpoint
+     */
+    private static void log() throws IOException {
+        int puts = 200000;
+        File directory = new File(System.getProperty("java.io.tmpdir"), "tieredmap-log-benchmark");
+        int[] groups = {-1, 0, 64 * 1024, 0, 64 * 1024};
+        boolean[] syncing = {false, false, false, true, true};
+        // THE FIRST PASS ONLY WARMS UP
+        for (int pass = 0; pass < 2; pass++) {
+            for (int mode = 0; mode < groups.length; mode++) {
+                // FORCING EVERY CHANGE ON ITS OWN IS SLOW, SO IT ONLY MAKES A
+                // TENTH
+                int count = mode == 3 ? puts / 10 : puts;
+                if (directory.isDirectory()) {
+                    for (File file : directory.listFiles()) {
+                        file.delete();
+                    }
+                }
+                FamilyLog<Integer, Integer> log = FamilyLog.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+                log.setGroupSize(Math.max(groups[mode], 0));
+                log.setSyncing(syncing[mode]);
+                TieredMap<Integer, Integer> root = groups[mode] < 0 ? new TieredMap<Integer, Integer>() : log.getRoot();
+                List<TieredMap<Integer, Integer>> channels = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    channels.add(root.child());
+                }
+
+                Random random = new Random(1);
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    channels.get(random.nextInt(channels.size())).put(random.nextInt(50000), i);
+                }
+                log.commit();
+                long elapsed = System.nanoTime() - start;
+                sink += root.size();
+
+                String name = groups[mode] < 0 ? "no log" : (syncing[mode] ? "synced" : "unsynced") + (groups[mode] == 0 ? " each" : " 64 KB");
+                if (pass == 1) {
+                    System.out.printf("log     %-14s %,8d ns/put%n", name, elapsed / count);
+                }
+
+                if (pass == 1 && mode == groups.length - 1) {
+                    restore(log, directory);
+                }
+                log.close();
+            }
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    // RESTORES A LOGGED FAMILY BY REPLAYING ITS LOG AND FROM A CHECKPOINT OF
+    // IT IN A SECOND DIRECTORY, ONLY PRINTING THE LAST OF SEVERAL ROUNDS
+    private static void restore(FamilyLog<Integer, Integer> log, File directory) throws IOException {
+        long size = new File(directory, "family.log").length();
+        log.close();
+        File copy = new File(directory.getPath() + "-checkpoint");
+        copy.mkdirs();
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        FamilyLog<Integer, Integer> checkpointed = FamilyLog.open(copy, Serializer.INTEGER, Serializer.INTEGER);
+        checkpointed.checkpoint();
+        checkpointed.close();
+
+        long replay = 0;
+        long checkpoint = 0;
+        for (int round = 0; round < 4; round++) {
+            long start = System.nanoTime();
+            log = FamilyLog.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+            replay = System.nanoTime() - start;
+            sink += log.getRoot().size();
+            log.close();
+
+            start = System.nanoTime();
+            checkpointed = FamilyLog.open(copy, Serializer.INTEGER, Serializer.INTEGER);
+            checkpoint = System.nanoTime() - start;
+            sink += checkpointed.getRoot().size();
+            checkpointed.close();
+        }
+        for (File file : copy.listFiles()) {
+            file.delete();
+        }
+        copy.delete();
+        System.out.printf("log     restore by replaying %,d bytes %,8d us   by reading a checkpoint %,8d us%n",
+                size, replay / 1000, checkpoint / 1000);
+    }
+
+    // HELPERS
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Op {
+
+        boolean read(int key);
+
+        void write(int key);
+    }
+
+    private static void fill(Map<Integer, Integer> map) {
+        for (int i = 0; i < 100000; i++) {
+            map.put(i, i);
+        }
+    }
+
+    // RUNS READERS AGAINST ONE WRITER AND RETURNS THE TOTAL READS PER SECOND
+    private static long measure(int threads, final Op op) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[] counts = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    long hits = 0;
+                    int key = index;
+                    while (running.get()) {
+                        if (op.read(key)) {
+                            hits++;
+                        }
+                        key = (key + 7919) % 200000;
+                        n++;
+                    }
+                    counts[index] = n;
+                    sink += hits;
+                }
+            });
+        }
+        workers.add(new Thread() {
+            @Override
+            public void run() {
+                int key = 200000;
+                while (running.get()) {
+                    op.write(key++);
+                }
+            }
+        });
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(MILLIS);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total * 1000 / MILLIS;
+    }
+}
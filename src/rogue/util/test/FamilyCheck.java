@@ -0,0 +1,1211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import rogue.util.*;
+
+/**
+ * Randomized checks of the TieredMap family. Every section builds a family in
+ * one of its modes next to a plain TieredMap family of the same shape, runs a
+ * long random sequence of operations on both and compares every map of the
+ * two along the way. Pass section names as arguments to only run those, or
+ * nothing to run them all. Exits with status 1 on the first mismatch.
+ *
+ * @author Rogue <Alice Q.>
+ */
+public class FamilyCheck {
+
+    // THE KEYS OPERATIONS PICK FROM, FEW ENOUGH THAT MOST OF THEM HIT
+    private static final int KEYS = 100;
+
+    /**
+     * Main method
+     *
+     * @param args the names of the sections to run, or none for all of them
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> sections = Arrays.asList(args);
+
+        if (sections.isEmpty() || sections.contains("writebehind")) {
+            writeBehind();
+        }
+        if (sections.isEmpty() || sections.contains("shared")) {
+            shared();
+        }
+        if (sections.isEmpty() || sections.contains("ancestry")) {
+            ancestry();
+        }
+        if (sections.isEmpty() || sections.contains("index")) {
+            index();
+        }
+        if (sections.isEmpty() || sections.contains("summaries")) {
+            summaries();
+        }
+        if (sections.isEmpty() || sections.contains("values")) {
+            values();
+        }
+        if (sections.isEmpty() || sections.contains("snapshots")) {
+            snapshots();
+        }
+        if (sections.isEmpty() || sections.contains("mapped")) {
+            mapped();
+        }
+        if (sections.isEmpty() || sections.contains("log")) {
+            log();
+        }
+        if (sections.isEmpty() || sections.contains("primitive")) {
+            primitive();
+        }
+        if (sections.isEmpty() || sections.contains("format")) {
+            format();
+        }
+        if (sections.isEmpty() || sections.contains("removeall")) {
+            removeAll();
+        }
+        if (sections.isEmpty() || sections.contains("versions")) {
+            versions();
+        }
+    }
+
+    // SECTIONS
+    // - writebehind
+    // - shared
+    // - ancestry
+    // - index
+    // - summaries
+    // - values
+    // - snapshots
+    // - mapped
+    // - log
+    // - primitive
+    // - format
+    // - removeall
+    // - versions
+    /**
+     * Runs 200k operations on a write-behind family, now and then switching
+     * write-behind off and back on, and compares it with the plain family
+     * after every flush
+     */
+    private static void writeBehind() {
+        Random random = new Random(5);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 60, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 60, new Random(5));
+        tested.get(0).setWriteBehind(true);
+
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(5000) == 0) {
+                tested.get(0).setWriteBehind(!tested.get(0).isWriteBehind());
+            }
+            step("writebehind", tested, model, random, i, true);
+            if (i % 1000 == 0) {
+                compare("writebehind", i, tested, model);
+            }
+        }
+        compare("writebehind", -1, tested, model);
+        System.out.println("writebehind OK: 200000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 300k operations on a family with shared entry storage, including
+     * removals through the views and clears, and compares it with the plain
+     * family every 1000 operations. Snapshots of both are taken now and then
+     * and compared again once both families have moved on.
+     */
+    private static void shared() {
+        Random random = new Random(8);
+        List<TieredMap<Integer, Integer>> tested = family(TieredMap.<Integer, Integer>withSharedStorage(), 30, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 30, new Random(8));
+        List<TieredMap<Integer, Integer>> testedSnapshot = maps(tested.get(0).snapshot());
+        List<TieredMap<Integer, Integer>> modelSnapshot = maps(model.get(0).snapshot());
+
+        for (int i = 0; i < 300000; i++) {
+            step("shared", tested, model, random, i, true);
+            if (i % 1000 == 0) {
+                compare("shared", i, tested, model);
+                compare("shared snapshot", i, testedSnapshot, modelSnapshot);
+            }
+            if (i % 10000 == 0) {
+                testedSnapshot = maps(tested.get(0).snapshot());
+                modelSnapshot = maps(model.get(0).snapshot());
+            }
+        }
+        compare("shared", -1, tested, model);
+        System.out.println("shared OK: 300000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 100k operations on a family which often grows, clones and detaches
+     * its maps, and checks the root and generation every map caches against
+     * its chain of parents every 1000 operations,
+     * along with the entries of every map
+     */
+    private static void ancestry() {
+        Random random = new Random(16);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 20, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 20, new Random(16));
+
+        for (int i = 0; i < 100000; i++) {
+            int index = random.nextInt(tested.size());
+            TieredMap<Integer, Integer> map = tested.get(index);
+            switch (random.nextInt(50)) {
+                case 0:
+                    tested.add(map.child());
+                    model.add(model.get(index).child());
+                    break;
+                case 1:
+                    tested.add(map.clone());
+                    model.add(model.get(index).clone());
+                    break;
+                case 2:
+                    if (!map.isRoot()) {
+                        tested.add(map.sibling());
+                        model.add(model.get(index).sibling());
+                    }
+                    break;
+                case 3:
+                    if (!map.isRoot()) {
+                        map.detach();
+                        model.get(index).detach();
+                    }
+                    break;
+                default:
+                    step("ancestry", tested, model, random, i, true);
+            }
+            if (i % 1000 == 0) {
+                for (int j = 0; j < tested.size(); j++) {
+                    TieredMap<Integer, Integer> root = tested.get(j);
+                    int generation = 0;
+                    while (root.getParent() != null) {
+                        root = root.getParent();
+                        generation++;
+                    }
+                    if (tested.get(j).getRoot() != root || tested.get(j).getGeneration() != generation) {
+                        fail("ancestry", i, "root or generation of map " + j);
+                    }
+                }
+                compare("ancestry", i, tested, model);
+            }
+        }
+        System.out.println("ancestry OK: 100000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 200k operations on a key-indexed family, including clones and
+     * removals through the views, and compares it with the plain family
+     * every 1000 operations, along with the maps tiersContaining finds for
+     * every key
+     */
+    private static void index() {
+        Random random = new Random(15);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(15));
+        tested.get(0).setKeyIndexed(true);
+
+        for (int i = 0; i < 200000; i++) {
+            step("index", tested, model, random, i, true);
+            if (i % 1000 == 0) {
+                compare("index", i, tested, model);
+                for (int key = 0; key < KEYS; key++) {
+                    int index = random.nextInt(tested.size());
+                    if (!indices(tested, tested.get(index).tiersContaining(key)).equals(holders(model, model.get(index), key))) {
+                        fail("index", i, "tiersContaining(" + key + ") of map " + index);
+                    }
+                }
+            }
+        }
+        System.out.println("index OK: 200000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 200k operations on a summarized family, including clones, clears
+     * and removals through the views, and compares it with the plain family
+     * every 1000 operations, along with what subtreeContainsKey finds from
+     * every map for a random key, in the family and in a snapshot of it. The
+     * summaries are now and then switched off and back on.
+     */
+    private static void summaries() {
+        Random random = new Random(19);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(19));
+        tested.get(0).setSubtreeSummaries(true);
+
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(20000) == 0) {
+                tested.get(0).setSubtreeSummaries(false);
+                tested.get(0).setSubtreeSummaries(true);
+            }
+            step("summaries", tested, model, random, i, true);
+            if (i % 1000 == 0) {
+                compare("summaries", i, tested, model);
+                int key = random.nextInt(KEYS);
+                List<TieredMap<Integer, Integer>> snapshot = maps(tested.get(0).snapshot());
+                List<TieredMap<Integer, Integer>> reached = maps(model.get(0));
+                for (int j = 0; j < tested.size(); j++) {
+                    boolean held = false;
+                    for (TieredMap<Integer, Integer> map : maps(model.get(j))) {
+                        held |= map.containsKey(key);
+                    }
+                    if (tested.get(j).subtreeContainsKey(key) != held) {
+                        fail("summaries", i, "subtreeContainsKey(" + key + ") of map " + j);
+                    }
+                    int k = indexOf(reached, model.get(j));
+                    if (k >= 0 && snapshot.get(k).subtreeContainsKey(key) != held) {
+                        fail("summaries", i, "subtreeContainsKey(" + key + ") of map " + j + " in a snapshot");
+                    }
+                }
+            }
+        }
+        System.out.println("summaries OK: 200000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 200k operations on a family whose root indexes its values,
+     * including clones, clears and removals through the views, and checks
+     * containsValue on every map against the plain family every 100
+     * operations, for values held by the map itself, by another map and by
+     * none, in the family and in a snapshot of it. Both families are cleared
+     * from the root now and then, so that the value index is trusted again.
+     */
+    private static void values() {
+        Random random = new Random(14);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<>(TierStorage.valueIndexed(TierStorage.<Integer, Integer>hashed())), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(14));
+
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(5000) == 0) {
+                tested.get(0).clearSubtree();
+                model.get(0).clearSubtree();
+            }
+            step("values", tested, model, random, i, true);
+            if (i % 100 == 0) {
+                List<TieredMap<Integer, Integer>> snapshot = maps(tested.get(0).snapshot());
+                List<TieredMap<Integer, Integer>> reached = maps(model.get(0));
+                for (int j = 0; j < tested.size(); j++) {
+                    int k = indexOf(reached, model.get(j));
+                    for (Integer value : new Integer[]{any(model.get(j), random), any(model.get(random.nextInt(model.size())), random), i - random.nextInt(1000)}) {
+                        boolean held = model.get(j).values().contains(value);
+                        if (tested.get(j).containsValue(value) != held) {
+                            fail("values", i, "containsValue(" + value + ") of map " + j);
+                        }
+                        if (k >= 0 && snapshot.get(k).containsValue(value) != held) {
+                            fail("values", i, "containsValue(" + value + ") of map " + j + " in a snapshot");
+                        }
+                    }
+                }
+            }
+        }
+        compare("values", -1, tested, model);
+        System.out.println("values OK: 200000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 200k operations on a summarized family, including clones, clears
+     * and removals through the views, taking a snapshot every 50 operations.
+     * The last 8 snapshots are checked every 50 operations against copies of
+     * every map made when they were taken: the entries, children and
+     * generation of every map, and what subtreeContainsKey finds from it for
+     * a random key. The summaries are now and then switched off and back on.
+     */
+    private static void snapshots() {
+        Random random = new Random(6);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(6));
+        tested.get(0).setSubtreeSummaries(true);
+        List<TieredMap<Integer, Integer>> snapshots = new ArrayList<>();
+        List<List<TieredMap<Integer, Integer>>> copies = new ArrayList<>();
+
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(20000) == 0) {
+                tested.get(0).setSubtreeSummaries(false);
+                tested.get(0).setSubtreeSummaries(true);
+            }
+            step("snapshots", tested, model, random, i, true);
+            if (i % 50 == 0) {
+                snapshots.add(tested.get(0).snapshot());
+                List<TieredMap<Integer, Integer>> copy = new ArrayList<>();
+                for (TieredMap<Integer, Integer> map : maps(model.get(0))) {
+                    copy.add(map.getNewRoot());
+                }
+                copies.add(copy);
+                if (snapshots.size() > 8) {
+                    snapshots.remove(0);
+                    copies.remove(0);
+                }
+                int key = random.nextInt(KEYS);
+                reject(snapshots.get(random.nextInt(snapshots.size())), key, random, i);
+                List<TieredMap<Integer, Integer>> reached = maps(model.get(0));
+                for (int j = 0; j < snapshots.size(); j++) {
+                    List<TieredMap<Integer, Integer>> taken = maps(snapshots.get(j));
+                    if (taken.size() != copies.get(j).size()) {
+                        fail("snapshots", i, "snapshot " + j + " has " + taken.size() + " maps");
+                    }
+                    for (int k = 0; k < taken.size(); k++) {
+                        // AS A MAP, SINCE equals(TieredMap) ALSO COMPARES THE PARENTS
+                        Map<Integer, Integer> entries = taken.get(k);
+                        if (!entries.equals(copies.get(j).get(k)) || !taken.get(k).isSnapshot()) {
+                            fail("snapshots", i, "map " + k + " of snapshot " + j + " is " + entries);
+                        }
+                    }
+                    if (j == snapshots.size() - 1) {
+                        for (int k = 0; k < taken.size(); k++) {
+                            boolean held = false;
+                            for (TieredMap<Integer, Integer> map : maps(reached.get(k))) {
+                                held |= map.containsKey(key);
+                            }
+                            if (taken.get(k).getNumChildren() != reached.get(k).getNumChildren()
+                                    || taken.get(k).getGeneration() != reached.get(k).getGeneration()
+                                    || taken.get(k).subtreeContainsKey(key) != held) {
+                                fail("snapshots", i, "map " + k + " of the last snapshot");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        compare("snapshots", -1, tested, model);
+        System.out.println("snapshots OK: 200000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Tries a write on a random map of a snapshot, which must be rejected
+     * before it changes anything the snapshot or a later one shows.
+     */
+    private static void reject(TieredMap<Integer, Integer> snapshot, int key, Random random, int value) {
+        List<TieredMap<Integer, Integer>> taken = maps(snapshot);
+        TieredMap<Integer, Integer> map = taken.get(random.nextInt(taken.size()));
+        try {
+            switch (random.nextInt(5)) {
+                case 0:
+                    map.clear();
+                    break;
+                case 1:
+                    map.put(key, value);
+                    break;
+                case 2:
+                    map.keySet().remove(key);
+                    break;
+                case 3:
+                    map.entrySet().remove(new SimpleEntry<>(key, map.get(key)));
+                    break;
+                default:
+                    map.remove(key);
+                    break;
+            }
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        fail("snapshots", value, "a write to a snapshot was accepted");
+    }
+
+    /**
+     * Runs 20 rounds of 5000 operations on a family whose root lives in
+     * mapped files, syncing it and taking snapshots now and then, which moves
+     * the root out of its files. Every round ends without a sync, as if the
+     * process stopped, and the family opened again from its directory is
+     * compared with the plain family as it was at the last sync. Keys whose
+     * hashCode changes from one process to the next are then checked to still
+     * be found once their family is opened again.
+     */
+    private static void mapped() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "tieredmap-familycheck");
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+        }
+        Random random = new Random(24);
+        MappedFamily<Integer, Integer> family = MappedFamily.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+        List<TieredMap<Integer, Integer>> tested = family(family.getRoot(), 20, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 20, new Random(24));
+        List<Map<Integer, Integer>> entries = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+
+        for (int round = 0; round < 20; round++) {
+            family.sync();
+            remember(model.get(0), entries, parents);
+            for (int i = 0; i < 5000; i++) {
+                step("mapped", tested, model, random, i, true);
+                if (random.nextInt(500) == 0) {
+                    family.sync();
+                    remember(model.get(0), entries, parents);
+                }
+                if (random.nextInt(1000) == 0) {
+                    tested.get(0).snapshot();
+                }
+            }
+            compare("mapped", round, tested, model);
+
+            // THE PROCESS STOPS WITHOUT A SYNC
+            family = MappedFamily.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+            tested = maps(family.getRoot());
+            model = rebuild(entries, parents);
+            compare("mapped reopened", round, tested, model);
+        }
+        family.close();
+
+        File saltedDirectory = new File(directory.getPath() + "-salted");
+        if (saltedDirectory.isDirectory()) {
+            for (File file : saltedDirectory.listFiles()) {
+                file.delete();
+            }
+        }
+        MappedFamily<Salted, Integer> salted = MappedFamily.open(saltedDirectory, Salted.SERIALIZER, Serializer.INTEGER);
+        for (int i = 0; i < 1000; i++) {
+            salted.getRoot().put(new Salted(i), i);
+        }
+        salted.close();
+        Salted.salt++;
+        salted = MappedFamily.open(saltedDirectory, Salted.SERIALIZER, Serializer.INTEGER);
+        for (int i = 0; i < 1000; i++) {
+            if (!Integer.valueOf(i).equals(salted.getRoot().get(new Salted(i)))) {
+                fail("mapped", i, "salted key " + i + " of the reopened family");
+            }
+        }
+        salted.close();
+        System.out.println("mapped OK: 20 rounds of 5000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 40 rounds of 5000 operations on a logged family, now and then
+     * switching its modes, and ends every round with a commit or a
+     * checkpoint. The family is then opened again without closing the log
+     * and compared with a plain family built from the entries it had, along
+     * with the modes it was in.
+     */
+    private static void log() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "tieredmap-familycheck-log");
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+        }
+        Random random = new Random(25);
+        FamilyLog<Integer, Integer> log = FamilyLog.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+        List<TieredMap<Integer, Integer>> tested = family(log.getRoot(), 20, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 20, new Random(25));
+        List<Map<Integer, Integer>> entries = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+
+        for (int round = 0; round < 40; round++) {
+            TieredMap<Integer, Integer> root = tested.get(0);
+            for (int i = 0; i < 5000; i++) {
+                if (random.nextInt(1000) == 0) {
+                    root.setWriteBehind(!root.isWriteBehind());
+                }
+                if (random.nextInt(1000) == 0) {
+                    root.setKeyIndexed(!root.isKeyIndexed());
+                }
+                if (random.nextInt(1000) == 0) {
+                    root.setSubtreeSummaries(!root.hasSubtreeSummaries());
+                }
+                step("log", tested, model, random, i, false);
+            }
+            compare("log", round, tested, model);
+            if (random.nextBoolean()) {
+                log.commit();
+            } else {
+                log.checkpoint();
+            }
+            remember(model.get(0), entries, parents);
+            boolean writeBehind = root.isWriteBehind();
+            boolean keyIndexed = root.isKeyIndexed();
+            boolean summarized = root.hasSubtreeSummaries();
+
+            // THE PROCESS STOPS WITHOUT CLOSING THE LOG
+            log = FamilyLog.open(directory, Serializer.INTEGER, Serializer.INTEGER);
+            root = log.getRoot();
+            if (root.isWriteBehind() != writeBehind || root.isKeyIndexed() != keyIndexed
+                    || root.hasSubtreeSummaries() != summarized) {
+                fail("log reopened", round, "the modes of the family");
+            }
+            tested = maps(root);
+            model = rebuild(entries, parents);
+            compare("log reopened", round, tested, model);
+        }
+        log.close();
+        System.out.println("log OK: 40 rounds of 5000 operations over " + tested.size() + " maps");
+    }
+
+    /**
+     * Runs 500k operations on an IntObjTieredMap family and a LongObjTieredMap
+     * family at once and compares both with the plain family every 1000
+     * operations, then removes and inherits along a chain of 100k maps and
+     * plots a chain of 10k, deeper than a recursion over the family could go
+     */
+    private static void primitive() {
+        Random random = new Random(9);
+        List<IntObjTieredMap<Integer>> ints = new ArrayList<>();
+        List<LongObjTieredMap<Integer>> longs = new ArrayList<>();
+        List<TieredMap<Integer, Integer>> model = new ArrayList<>();
+        ints.add(new IntObjTieredMap<Integer>());
+        longs.add(new LongObjTieredMap<Integer>());
+        model.add(new TieredMap<Integer, Integer>());
+
+        for (int i = 0; i < 500000; i++) {
+            int index = random.nextInt(model.size());
+            IntObjTieredMap<Integer> a = ints.get(index);
+            LongObjTieredMap<Integer> b = longs.get(index);
+            TieredMap<Integer, Integer> c = model.get(index);
+            int key = random.nextInt(KEYS) - KEYS / 2;
+            int op = random.nextInt(100);
+
+            if (op < 40) {
+                a.put(key, i);
+                b.put(key, i);
+                c.put(key, i);
+            } else if (op < 60) {
+                a.remove(key);
+                b.remove(key);
+                c.remove(key);
+            } else if (op < 70) {
+                a.inherit(key);
+                b.inherit(key);
+                c.inherit(key);
+            } else if (op < 75) {
+                if (model.size() < 200 && random.nextInt(10) == 0) {
+                    ints.add(a.child());
+                    longs.add(b.child());
+                    model.add(c.child());
+                }
+            } else if (op < 76) {
+                if (!c.isRoot() && random.nextInt(10) == 0) {
+                    a.detach();
+                    b.detach();
+                    c.detach();
+                }
+            } else if (op < 77) {
+                if (random.nextInt(10) == 0) {
+                    a.clear();
+                    b.clear();
+                    c.clear();
+                }
+            } else {
+                Integer expected = c.get(key);
+                if (!java.util.Objects.equals(a.get(key), expected) || !java.util.Objects.equals(b.get(key), expected)
+                        || a.containsKeyInFamily(key) != c.containsKeyInFamily(key)
+                        || b.containsKeyInFamily(key) != c.containsKeyInFamily(key)) {
+                    fail("primitive", i, "key " + key + " of map " + index);
+                }
+            }
+            if (i % 1000 == 0) {
+                comparePrimitive(i, ints, longs, model);
+            }
+        }
+        comparePrimitive(-1, ints, longs, model);
+
+        IntObjTieredMap<Integer> head = new IntObjTieredMap<>();
+        IntObjTieredMap<Integer> tail = head;
+        for (int i = 0; i < 100000; i++) {
+            tail = tail.child();
+        }
+        tail.put(1, 1);
+        tail.put(2, 2);
+        head.remove(1);
+        if (tail.containsKey(1) || tail.getParent().inherit(2) != 2) {
+            fail("primitive", -1, "the chain of 100000 maps");
+        }
+        // THE PLOT OF A CHAIN GROWS WITH THE SQUARE OF ITS LENGTH
+        head = new IntObjTieredMap<>();
+        tail = head;
+        for (int i = 0; i < 10000; i++) {
+            tail = tail.child();
+        }
+        if (IntObjTieredMap.toGraph(tail).split("\n").length != 10001) {
+            fail("primitive", -1, "the plot of a chain of 10000 maps");
+        }
+        System.out.println("primitive OK: 500000 operations over " + model.size() + " maps");
+    }
+
+    /**
+     * Runs 100k operations on a family, writing it and a random subtree of it
+     * in the family format every 1000 operations. Each is read back and must
+     * hold the same entries and children as what was written, and writing it,
+     * reading it and writing it again must give the same bytes twice, as the
+     * order they are written in only depends on what was read. A family whose
+     * bitset of members has a position set past those of the parent must then
+     * be rejected.
+     */
+    private static void format() throws IOException {
+        Random random = new Random(23);
+        FamilyFormat<Integer, Integer> format = new FamilyFormat<>(Serializer.INTEGER, Serializer.INTEGER);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(23));
+        int written = 0;
+
+        for (int i = 0; i < 100000; i++) {
+            step("format", tested, model, random, i, true);
+            if (i % 1000 == 0) {
+                TieredMap<Integer, Integer> root = tested.get(0);
+                List<TieredMap<Integer, Integer>> below = maps(root);
+                for (TieredMap<Integer, Integer> map : Arrays.asList(root, below.get(random.nextInt(below.size())))) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    format.write(map, bytes);
+                    TieredMap<Integer, Integer> read = format.read(new ByteArrayInputStream(bytes.toByteArray()));
+                    List<TieredMap<Integer, Integer>> expected = maps(map);
+                    List<TieredMap<Integer, Integer>> actual = maps(read);
+                    for (int j = 0; j < expected.size(); j++) {
+                        Map<Integer, Integer> entries = actual.get(j);
+                        if (!entries.equals(expected.get(j)) || actual.get(j).getNumChildren() != expected.get(j).getNumChildren()) {
+                            fail("format", i, "map " + j + " read back as " + actual.get(j) + " instead of " + expected.get(j));
+                        }
+                    }
+
+                    ByteArrayOutputStream once = new ByteArrayOutputStream();
+                    format.write(read, once);
+                    TieredMap<Integer, Integer> reread = format.read(new ByteArrayInputStream(once.toByteArray()));
+                    ByteArrayOutputStream twice = new ByteArrayOutputStream();
+                    format.write(reread, twice);
+                    if (!Arrays.equals(once.toByteArray(), twice.toByteArray())) {
+                        fail("format", i, "the bytes of the family read back twice");
+                    }
+                    written += bytes.size();
+                }
+                compare("format", i, tested, model);
+            }
+        }
+
+        // THE CHILD HOLDS 9 OF THE 10 ENTRIES OF THE ROOT, AND ITS BITSET IS
+        // ONLY FOLLOWED BY ITS OWN ENTRIES AND CHILDREN, NONE OF EITHER
+        TieredMap<Integer, Integer> root = new TieredMap<>();
+        TieredMap<Integer, Integer> child = root.child();
+        for (int i = 0; i < 10; i++) {
+            child.put(i, i);
+        }
+        child.remove(9);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        format.write(root, bytes);
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[corrupt.length - 3] |= 1 << 2;
+        try {
+            format.read(new ByteArrayInputStream(corrupt));
+            fail("format", -1, "a bitset with a position past the parent");
+        } catch (IOException e) {
+            // EXPECTED
+        }
+        System.out.println("format OK: 100000 operations, " + written + " bytes written");
+    }
+
+    /**
+     * Runs 50k operations on a wide family in every mode removeAll has a path
+     * for: serially and through a pool with a threshold of 1 and of 4, each
+     * on a plain, a key-indexed and a summarized family. One operation in five
+     * removes a batch of keys, which the plain family removes one by one, and
+     * the values returned must be those the map held, and every map which
+     * lost keys must have a new version. Both are compared every 1000
+     * operations.
+     */
+    private static void removeAll() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int[] thresholds = {0, 1, 4};
+        String[] modes = {"plain", "indexed", "summarized"};
+
+        for (int threshold : thresholds) {
+            for (String mode : modes) {
+                String section = "removeall " + mode + (threshold == 0 ? "" : " " + threshold);
+                Random random = new Random(20);
+                List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 200, random);
+                List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 200, new Random(20));
+                tested.get(0).setKeyIndexed(mode.equals("indexed"));
+                tested.get(0).setSubtreeSummaries(mode.equals("summarized"));
+
+                for (int i = 0; i < 50000; i++) {
+                    if (random.nextInt(5) > 0) {
+                        step(section, tested, model, random, i, true);
+                    } else {
+                        int index = random.nextInt(tested.size());
+                        List<Integer> keys = new ArrayList<>();
+                        for (int j = random.nextInt(40); j >= 0; j--) {
+                            keys.add(random.nextInt(KEYS));
+                        }
+                        Map<Integer, Integer> expected = new HashMap<>();
+                        for (Integer key : keys) {
+                            Integer value = model.get(index).remove(key);
+                            if (value != null) {
+                                expected.put(key, value);
+                            }
+                        }
+                        TieredMap<Integer, Integer> map = tested.get(index);
+                        List<TieredMap<Integer, Integer>> below = maps(map);
+                        long[] versions = new long[below.size()];
+                        int[] sizes = new int[below.size()];
+                        for (int j = 0; j < below.size(); j++) {
+                            versions[j] = below.get(j).getVersion();
+                            sizes[j] = below.get(j).size();
+                        }
+                        Map<Integer, Integer> removed = threshold == 0 ? map.removeAll(keys) : map.removeAll(keys, pool, threshold);
+                        if (!removed.equals(expected)) {
+                            fail(section, i, "removeAll of map " + index + " returned " + removed + " instead of " + expected);
+                        }
+                        for (int j = 0; j < below.size(); j++) {
+                            if (below.get(j).size() != sizes[j] && below.get(j).getVersion() == versions[j]) {
+                                fail(section, i, "removeAll of map " + index + " kept the version of a map it changed");
+                            }
+                        }
+                    }
+                    if (i % 1000 == 0) {
+                        compare(section, i, tested, model);
+                    }
+                }
+                compare(section, -1, tested, model);
+            }
+        }
+        pool.shutdown();
+        System.out.println("removeall OK: 50000 operations in " + thresholds.length * modes.length + " modes");
+    }
+
+    /**
+     * Runs 200k operations on a family, including clones, clears and removals
+     * through the views, reading the version of a random map after every one
+     * and the subtree version of every map every 1000. Whenever a version
+     * reads the same as it last did, the entries of the map, or of every map
+     * below it for a subtree version, must also be the same as they were.
+     */
+    private static void versions() {
+        Random random = new Random(22);
+        List<TieredMap<Integer, Integer>> tested = family(new TieredMap<Integer, Integer>(), 40, random);
+        List<TieredMap<Integer, Integer>> model = family(new TieredMap<Integer, Integer>(), 40, new Random(22));
+        Map<TieredMap<Integer, Integer>, Long> versions = new IdentityHashMap<>();
+        Map<TieredMap<Integer, Integer>, Map<Integer, Integer>> entries = new IdentityHashMap<>();
+        Map<TieredMap<Integer, Integer>, Long> subtreeVersions = new IdentityHashMap<>();
+        Map<TieredMap<Integer, Integer>, List<Map<Integer, Integer>>> subtrees = new IdentityHashMap<>();
+        int unchanged = 0;
+
+        for (int i = 0; i < 200000; i++) {
+            step("versions", tested, model, random, i, true);
+            TieredMap<Integer, Integer> map = tested.get(random.nextInt(tested.size()));
+            long version = map.getVersion();
+            Long last = versions.get(map);
+            if (last != null && version < last) {
+                fail("versions", i, "the version of " + map + " went back");
+            }
+            if (last != null && version == last) {
+                unchanged++;
+                Map<Integer, Integer> current = map;
+                if (!current.equals(entries.get(map))) {
+                    fail("versions", i, "the version of " + map + " stayed " + version + " since " + entries.get(map));
+                }
+            }
+            versions.put(map, version);
+            entries.put(map, new HashMap<>(map));
+
+            if (i % 1000 == 0) {
+                for (TieredMap<Integer, Integer> each : tested) {
+                    long subtreeVersion = each.getSubtreeVersion();
+                    List<Map<Integer, Integer>> subtree = new ArrayList<>();
+                    for (TieredMap<Integer, Integer> below : maps(each)) {
+                        subtree.add(new HashMap<>(below));
+                    }
+                    if (subtreeVersions.containsKey(each) && subtreeVersion == subtreeVersions.get(each)
+                            && !subtree.equals(subtrees.get(each))) {
+                        fail("versions", i, "the subtree version of " + each + " stayed " + subtreeVersion);
+                    }
+                    subtreeVersions.put(each, subtreeVersion);
+                    subtrees.put(each, subtree);
+                }
+                compare("versions", i, tested, model);
+            }
+        }
+        System.out.println("versions OK: 200000 operations over " + tested.size() + " maps, " + unchanged + " versions unchanged");
+    }
+
+    // HELPERS
+    // - family
+    // - maps
+    // - indices
+    // - indexOf
+    // - holders
+    // - any
+    // - remember
+    // - rebuild
+    // - step
+    // - compare
+    // - comparePrimitive
+    // - fail
+    /**
+     * Grows a family of a given number of maps from a root, each under a
+     * random map grown before it
+     *
+     * @param root the root of the family
+     * @param size the number of maps in the family
+     * @param random where the shape of the family comes from
+     * @return every map of the family, the root first
+     */
+    private static List<TieredMap<Integer, Integer>> family(TieredMap<Integer, Integer> root, int size, Random random) {
+        List<TieredMap<Integer, Integer>> maps = new ArrayList<>();
+        maps.add(root);
+        while (maps.size() < size) {
+            maps.add(maps.get(random.nextInt(maps.size())).child());
+        }
+        return maps;
+    }
+
+    /**
+     * Lists a map and every map below it, every parent before its children
+     *
+     * @param map the first map to list
+     * @return the map and every map below it
+     */
+    @SuppressWarnings("unchecked")
+    private static List<TieredMap<Integer, Integer>> maps(TieredMap<Integer, Integer> map) {
+        List<TieredMap<Integer, Integer>> maps = new ArrayList<>();
+        maps.add(map);
+        for (int i = 0; i < maps.size(); i++) {
+            for (TieredMap<?, ?> child : maps.get(i).getChildren()) {
+                maps.add((TieredMap<Integer, Integer>) child);
+            }
+        }
+        return maps;
+    }
+
+    /**
+     * Finds the positions of some maps in a list of maps
+     *
+     * @param maps every map
+     * @param some the maps to look for, compared by identity
+     * @return the positions of the maps looked for, in order
+     */
+    private static List<Integer> indices(List<TieredMap<Integer, Integer>> maps, Set<TieredMap<Integer, Integer>> some) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < maps.size(); i++) {
+            if (some.contains(maps.get(i))) {
+                indices.add(i);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Finds the position of a map in a list of maps, by identity
+     *
+     * @param maps every map
+     * @param map the map to look for
+     * @return the position of the map, or -1 if it is not listed
+     */
+    private static int indexOf(List<TieredMap<Integer, Integer>> maps, TieredMap<Integer, Integer> map) {
+        for (int i = 0; i < maps.size(); i++) {
+            if (maps.get(i) == map) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the positions of the maps holding a key among those reached from
+     * the root of a map's family through the children of every map
+     *
+     * @param maps every map
+     * @param map a map of the family to look in
+     * @param key the key to look for
+     * @return the positions of the maps holding the key, in order
+     */
+    private static List<Integer> holders(List<TieredMap<Integer, Integer>> maps, TieredMap<Integer, Integer> map, Integer key) {
+        Set<TieredMap<Integer, Integer>> reached = Collections.newSetFromMap(new IdentityHashMap<TieredMap<Integer, Integer>, Boolean>());
+        reached.addAll(maps(map.getRoot()));
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < maps.size(); i++) {
+            if (maps.get(i).containsKey(key) && reached.contains(maps.get(i))) {
+                indices.add(i);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Picks a random value held by a map
+     *
+     * @param map the map to pick from
+     * @param random where the pick comes from
+     * @return one of the values of the map, or -1 if it is empty
+     */
+    private static Integer any(TieredMap<Integer, Integer> map, Random random) {
+        if (map.isEmpty()) {
+            return -1;
+        }
+        Iterator<Integer> values = map.values().iterator();
+        for (int skip = random.nextInt(map.size()); skip > 0; skip--) {
+            values.next();
+        }
+        return values.next();
+    }
+
+    /**
+     * Copies the entries of a map and every map below it, along with the
+     * position of the parent of each, as maps lists them
+     *
+     * @param map the first map to copy
+     * @param entries where to put the entries of every map, replacing any
+     * @param parents where to put the position of the parent of every map, or
+     * -1 for the first, replacing any
+     */
+    private static void remember(TieredMap<Integer, Integer> map, List<Map<Integer, Integer>> entries, List<Integer> parents) {
+        List<TieredMap<Integer, Integer>> maps = maps(map);
+        entries.clear();
+        parents.clear();
+        for (TieredMap<Integer, Integer> each : maps) {
+            entries.add(new HashMap<>(each));
+            parents.add(each == map ? -1 : indexOf(maps, each.getParent()));
+        }
+    }
+
+    /**
+     * Builds a plain family from the copies remember made. Every map puts its
+     * entries after those of the maps below it, so that its own values win,
+     * and then drops through its views any key it did not hold.
+     *
+     * @param entries the entries of every map
+     * @param parents the position of the parent of every map
+     * @return every map of the new family, in the order of the copies
+     */
+    private static List<TieredMap<Integer, Integer>> rebuild(List<Map<Integer, Integer>> entries, List<Integer> parents) {
+        List<TieredMap<Integer, Integer>> maps = new ArrayList<>();
+        maps.add(new TieredMap<Integer, Integer>());
+        for (int i = 1; i < entries.size(); i++) {
+            maps.add(maps.get(parents.get(i)).child());
+        }
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            maps.get(i).putAll(entries.get(i));
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            maps.get(i).keySet().retainAll(entries.get(i).keySet());
+        }
+        return maps;
+    }
+
+    /**
+     * Applies one random operation to the same map of both families. Clears
+     * and removals through the views only change the map they are made on,
+     * so they are left out of families where that differs from the plain
+     * family. An iteration only sees what has reached the map it walks, so a
+     * write-behind family is flushed before its keys are walked.
+     *
+     * @param section the section running the operation
+     * @param tested every map of the family under test
+     * @param model every map of the plain family, in the same order
+     * @param random where the operation comes from
+     * @param value the value of any entry the operation puts
+     * @param local true to also clear and remove through the views
+     */
+    private static void step(String section, List<TieredMap<Integer, Integer>> tested, List<TieredMap<Integer, Integer>> model,
+            Random random, int value, boolean local) {
+        int index = random.nextInt(tested.size());
+        TieredMap<Integer, Integer> a = tested.get(index);
+        TieredMap<Integer, Integer> b = model.get(index);
+        Integer key = random.nextInt(KEYS);
+        int op = random.nextInt(local ? 100 : 80);
+
+        if (op < 40) {
+            a.put(key, value);
+            b.put(key, value);
+        } else if (op < 45) {
+            Map<Integer, Integer> entries = new HashMap<>();
+            for (int i = 0; i < 4; i++) {
+                entries.put(random.nextInt(KEYS), value);
+            }
+            a.putAll(entries);
+            b.putAll(entries);
+        } else if (op < 60) {
+            a.remove(key);
+            b.remove(key);
+        } else if (op < 65) {
+            a.inherit(key);
+            b.inherit(key);
+        } else if (op < 70) {
+            List<Integer> keys = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                keys.add(random.nextInt(KEYS));
+            }
+            a.removeAll(keys);
+            for (Integer k : keys) {
+                b.remove(k);
+            }
+        } else if (op < 75) {
+            if (random.nextInt(50) == 0) {
+                tested.add(a.child());
+                model.add(b.child());
+            }
+        } else if (op < 76) {
+            if (!a.isRoot() && random.nextInt(10) == 0) {
+                a.detach();
+                b.detach();
+            }
+        } else if (op < 77) {
+            if (random.nextInt(10) == 0) {
+                boolean purge = random.nextBoolean();
+                a.clearSubtree(purge);
+                b.clearSubtree(purge);
+            }
+        } else if (op < 80) {
+            if (a.containsKeyInFamily(key) != b.containsKeyInFamily(key)) {
+                fail(section, value, "containsKeyInFamily(" + key + ") of map " + index);
+            }
+        } else if (op < 85) {
+            a.keySet().remove(key);
+            b.keySet().remove(key);
+        } else if (op < 90) {
+            a.flush();
+            removeMatching(a.keySet().iterator(), key % 7);
+            removeMatching(b.keySet().iterator(), key % 7);
+        } else if (op < 97) {
+            Entry<Integer, Integer> entry = new SimpleEntry<>(key, b.get(key));
+            a.entrySet().remove(entry);
+            b.entrySet().remove(entry);
+        } else if (op < 98) {
+            if (random.nextInt(5) == 0) {
+                tested.add(a.clone());
+                model.add(b.clone());
+            }
+        } else {
+            a.clear();
+            b.clear();
+        }
+    }
+
+    // REMOVES EVERY KEY WHICH LEAVES A GIVEN REMAINDER MODULO 7
+    private static void removeMatching(Iterator<Integer> keys, int remainder) {
+        while (keys.hasNext()) {
+            if (keys.next() % 7 == remainder) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Compares every map of both families, after applying any queued writes
+     *
+     * @param section the section comparing them
+     * @param step the number of operations run so far, or -1 once done
+     * @param tested every map of the family under test
+     * @param model every map of the plain family, in the same order
+     */
+    private static void compare(String section, int step, List<? extends TieredMap<Integer, Integer>> tested,
+            List<TieredMap<Integer, Integer>> model) {
+        for (int i = 0; i < tested.size(); i++) {
+            TieredMap<Integer, Integer> a = tested.get(i);
+            TieredMap<Integer, Integer> b = model.get(i);
+            a.flush();
+            // AS A MAP, SINCE equals(TieredMap) ALSO COMPARES THE PARENTS
+            Map<Integer, Integer> entries = a;
+            if (!entries.equals(b) || a.getNumChildren() != b.getNumChildren() || a.getGeneration() != b.getGeneration()) {
+                fail(section, step, "map " + i + " is " + a + " instead of " + b);
+            }
+        }
+    }
+
+    /**
+     * Compares every map of both primitive families with the plain family
+     *
+     * @param step the number of operations run so far, or -1 once done
+     * @param ints every map of the IntObjTieredMap family
+     * @param longs every map of the LongObjTieredMap family, in the same order
+     * @param model every map of the plain family, in the same order
+     */
+    private static void comparePrimitive(int step, List<IntObjTieredMap<Integer>> ints, List<LongObjTieredMap<Integer>> longs,
+            List<TieredMap<Integer, Integer>> model) {
+        for (int i = 0; i < model.size(); i++) {
+            IntObjTieredMap<Integer> a = ints.get(i);
+            LongObjTieredMap<Integer> b = longs.get(i);
+            TieredMap<Integer, Integer> c = model.get(i);
+            if (a.size() != c.size() || b.size() != c.size() || a.getNumChildren() != c.getNumChildren()
+                    || b.getNumChildren() != c.getNumChildren() || a.getGeneration() != c.getGeneration()
+                    || b.getGeneration() != c.getGeneration()) {
+                fail("primitive", step, "map " + i + " is " + a + " and " + b + " instead of " + c);
+            }
+            for (Entry<Integer, Integer> entry : c.entrySet()) {
+                if (!entry.getValue().equals(a.get(entry.getKey())) || !entry.getValue().equals(b.get(entry.getKey()))) {
+                    fail("primitive", step, "map " + i + " is " + a + " and " + b + " instead of " + c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports a mismatch and exits
+     *
+     * @param section the section which found the mismatch
+     * @param step the number of operations run so far
+     * @param detail what did not match
+     */
+    private static void fail(String section, int step, Object detail) {
+        System.out.println("FAILED: " + section + " at operation " + step + ": " + detail);
+        System.exit(1);
+    }
+
+    // A KEY WHOSE hashCode CHANGES WITH THE SALT, AS THAT OF AN ENUM OR OF AN
+    // OBJECT WITHOUT ITS OWN hashCode CHANGES FROM ONE PROCESS TO THE NEXT
+    private static final class Salted {
+
+        private static final Serializer<Salted> SERIALIZER = new Serializer<Salted>() {
+            @Override
+            public int sizeOf(Salted value) {
+                return 4;
+            }
+
+            @Override
+            public void write(Salted value, ByteBuffer buffer, int offset) {
+                buffer.putInt(offset, value.id);
+            }
+
+            @Override
+            public Salted read(ByteBuffer buffer, int offset, int length) {
+                return new Salted(buffer.getInt(offset));
+            }
+        };
+        private static int salt;
+
+        private final int id;
+
+        Salted(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Salted && ((Salted) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id * 31 + salt * 1000003;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Rogue <Alice Q.>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package rogue.util.test;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import rogue.util.*;
+
+/**
+ * Checks that every ConcurrentTieredMap tier stays a subset of its parent while
+ * many threads write to the family. Exits with status 1 on the first violation.
+ *
+ * Writes are run in two phases so that a checker can tell a real violation from
+ * a race between its own reads: while only puts run, a key seen in a child must
+ * be present in the parent when it is looked up afterwards, and while only
+ * removes run, a key missing from a parent must also be missing from the child
+ * when it is looked up afterwards. Removes are also made through the views of
+ * the tiers, and now and then by clearing a tier. Throughout both phases
+ * another thread keeps creating and detaching short-lived children all over
+ * the family.
+ *
+ * @author Rogue <Alice Q.>
+ */
+public class StressTest {
+
+    private static final int KEYS = 2000;
+    private static final long MILLIS = 2000;
+
+    private static final AtomicLong checks = new AtomicLong();
+    private static volatile String failure;
+
+    /**
+     * Main method
+     *
+     * @param args unused
+     */
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentTieredMap<Integer, Integer> root = new ConcurrentTieredMap<>();
+        List<ConcurrentTieredMap<Integer, Integer>> tiers = new ArrayList<>();
+        tiers.add(root);
+        for (int i = 0; i < 4; i++) {
+            ConcurrentTieredMap<Integer, Integer> branch = root.child();
+            tiers.add(branch);
+            for (int j = 0; j < 3; j++) {
+                ConcurrentTieredMap<Integer, Integer> leaf = branch.child();
+                tiers.add(leaf);
+                tiers.add(leaf.child());
+            }
+        }
+
+        int writers = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        for (int round = 0; round < 3; round++) {
+            phase(tiers, writers, true);
+            phase(tiers, writers, false);
+        }
+
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK: " + checks.get() + " subset checks over " + tiers.size() + " tiers");
+    }
+
+    // RUNS WRITERS OF ONE KIND AGAINST CHECKERS
+    private static void phase(final List<ConcurrentTieredMap<Integer, Integer>> tiers, int writers, final boolean puts)
+            throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < writers; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        ConcurrentTieredMap<Integer, Integer> tier = tiers.get(random.nextInt(tiers.size()));
+                        int key = random.nextInt(KEYS);
+                        if (puts) {
+                            tier.put(key, key);
+                        } else {
+                            remove(tier, key, random);
+                        }
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                while (running.get()) {
+                    ConcurrentTieredMap<Integer, Integer> channel = tiers.get(random.nextInt(tiers.size())).child();
+                    if (puts) {
+                        channel.put(random.nextInt(KEYS), 0);
+                    }
+                    channel.child().sibling();
+                    channel.detach();
+                }
+            }
+        });
+        for (int t = 0; t < 2; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    while (running.get() && failure == null) {
+                        for (ConcurrentTieredMap<Integer, Integer> tier : tiers) {
+                            if (!tier.isRoot()) {
+                                check(tier.getParent(), tier, puts);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(MILLIS / 6);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // REMOVES A KEY FROM A TIER IN ONE OF THE WAYS A MAP ALLOWS
+    private static void remove(ConcurrentTieredMap<Integer, Integer> tier, int key, Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                tier.keySet().remove(key);
+                break;
+            case 1:
+                tier.entrySet().remove(new SimpleEntry<>(key, key));
+                break;
+            case 2:
+                Iterator<Integer> values = tier.values().iterator();
+                if (values.hasNext()) {
+                    values.next();
+                    values.remove();
+                }
+                break;
+            case 3:
+                if (random.nextInt(1000) == 0) {
+                    tier.clear();
+                }
+                break;
+            default:
+                tier.remove(key);
+                break;
+        }
+    }
+
+    private static void check(ConcurrentTieredMap<Integer, Integer> parent, ConcurrentTieredMap<Integer, Integer> child, boolean puts) {
+        for (int key = 0; key < KEYS; key++) {
+            boolean violated;
+            if (puts) {
+                violated = child.containsKey(key) && !parent.containsKey(key);
+            } else {
+                violated = !parent.containsKey(key) && child.containsKey(key);
+            }
+
+            if (violated) {
+                failure = "key " + key + " in generation " + child.getGeneration() + " but not in its parent";
+                return;
+            }
+            checks.incrementAndGet();
+        }
+    }
+}